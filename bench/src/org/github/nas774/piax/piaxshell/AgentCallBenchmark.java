@@ -0,0 +1,61 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.piax.agent.AgentHome;
+import org.piax.agent.AgentId;
+import org.piax.agent.AgentPeer;
+
+/**
+ * Measures local round trips of AgentHome call styles used by the shell.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AgentCallBenchmark {
+    private AgentPeer peer;
+    private AgentHome home;
+    private AgentId agId;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        stdout = System.out;
+        System.setOut(BenchmarkPeers.nullPrintStream());
+
+        peer = BenchmarkPeers.newEmuPeer("call", 2);
+        home = peer.getHome();
+        agId = home.createAgent("samples.EchoAgent", "EchoAgent");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        peer.fin();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public Object call() throws Exception {
+        return home.call(agId, "echo", "hello");
+    }
+
+    @Benchmark
+    public Object callAsync() throws Exception {
+        return home.callAsync(agId, "echo", "hello").get();
+    }
+
+    @Benchmark
+    public void callOneway() {
+        home.callOneway(agId, "echo", "hello");
+    }
+}
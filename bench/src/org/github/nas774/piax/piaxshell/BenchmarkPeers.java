@@ -0,0 +1,51 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+
+import org.piax.agent.AgentPeer;
+import org.piax.trans.common.PeerLocator;
+import org.piax.trans.ts.emu.EmuLocator;
+
+/**
+ * Helpers shared by benchmarks.
+ */
+final class BenchmarkPeers {
+    private BenchmarkPeers() {
+    }
+
+    /**
+     * Create an in-process peer on the emulated transport.
+     * The peer is a seed of itself and is not joined.
+     * 
+     * @param name
+     *            peer name.
+     * @param vport
+     *            virtual port of EmuLocator. must be unique in the JVM.
+     * @return a new peer.
+     */
+    static AgentPeer newEmuPeer(String name, int vport) throws Exception {
+        PeerLocator locator = new EmuLocator(vport);
+        return new AgentPeer(null, name, locator,
+                Collections.singleton(locator), false, new File("."));
+    }
+
+    /**
+     * A PrintStream discards everything.
+     * Agents and the shell print to System.out, so benchmarks replace it
+     * to measure without console I/O.
+     */
+    static PrintStream nullPrintStream() {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+}
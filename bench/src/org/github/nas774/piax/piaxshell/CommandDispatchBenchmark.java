@@ -0,0 +1,59 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.piax.agent.AgentPeer;
+
+/**
+ * Measures a whole command through ShellCommandProcessor, that is,
+ * tokenizing, dispatching and executing against a local EchoAgent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandDispatchBenchmark {
+    @Param({ "call 0 echo hello", "calloneway 0 echo hello", "agents", "help" })
+    public String command;
+
+    private AgentPeer peer;
+    private AsyncReturnExecutor asyncReturnExecutor;
+    private ShellCommandProcessor processor;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        stdout = System.out;
+        System.setOut(BenchmarkPeers.nullPrintStream());
+
+        peer = BenchmarkPeers.newEmuPeer("dispatch", 1);
+        peer.getHome().createAgent("samples.EchoAgent", "EchoAgent");
+        // One executor per trial, so pollers do not pile up over trials.
+        asyncReturnExecutor = new AsyncReturnExecutor();
+        processor = new ShellCommandProcessor(peer, asyncReturnExecutor);
+        // Numbering agents.
+        processor.processCommand("agents");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        asyncReturnExecutor.shutdown();
+        peer.fin();
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public boolean dispatch() {
+        return processor.processCommand(command);
+    }
+}
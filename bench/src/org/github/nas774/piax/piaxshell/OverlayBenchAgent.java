@@ -0,0 +1,23 @@
+package org.github.nas774.piax.piaxshell;
+
+import org.piax.agent.Agent;
+import org.piax.agent.AgentConfigValues;
+import org.piax.agent.NoSuchOverlayException;
+import org.piax.ov.common.geog.Location;
+
+/**
+ * An agent OverlayScalingBenchmark places and discovers by location.
+ */
+public class OverlayBenchAgent extends Agent implements OverlayBenchAgentIf {
+    /**
+     * Set the location and register it to the overlay. The peer should be
+     * joined.
+     */
+    public void place(double x, double y) throws NoSuchOverlayException {
+        setAttrib(AgentConfigValues.LOCATION_ATTRIB_NAME, new Location(x, y), true);
+    }
+
+    public String echo(String s) {
+        return s;
+    }
+}
@@ -0,0 +1,13 @@
+package org.github.nas774.piax.piaxshell;
+
+import org.piax.agent.AgentIf;
+import org.piax.agent.NoSuchOverlayException;
+
+/**
+ * Methods of OverlayBenchAgent.
+ */
+public interface OverlayBenchAgentIf extends AgentIf {
+    void place(double x, double y) throws NoSuchOverlayException;
+
+    String echo(String s);
+}
@@ -0,0 +1,314 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.piax.agent.AgentConfigValues;
+import org.piax.agent.AgentHome;
+import org.piax.agent.AgentId;
+import org.piax.agent.AgentPeer;
+import org.piax.trans.common.PeerLocator;
+import org.piax.trans.common.ReturnSet;
+import org.piax.trans.ts.emu.EmuLocator;
+
+/**
+ * Grows an overlay of in-process peers on the emulated transport and
+ * measures join time, heap per peer and discovery by location at each size.
+ *
+ * Peers are added until the overlay reaches each size in turn, so a larger
+ * size reuses the peers of smaller ones. Each peer has agents placed at
+ * random locations. Queries are rectangles at random positions, issued by
+ * discoveryCallAsync from peers in turn. Locations and rectangles are drawn
+ * from a seeded Random, so runs with the same options are comparable.
+ *
+ * One CSV row is appended to the output file per size.
+ *
+ * <pre>
+ * OverlayScalingBenchmark [--sizes 10,100,1000] [--agents 1] [--queries 200]
+ *     [--parallel 8] [--area 0.01] [--settle 1000] [--timeout 10000]
+ *     [--seed 1] [--label name] [--out overlay-scaling.csv]
+ * </pre>
+ */
+public class OverlayScalingBenchmark {
+    /** Locations are in [0, SPACE) for both axes. */
+    private static final double SPACE = 80.0;
+    /** Virtual ports of EmuLocator start here. */
+    private static final int BASE_VPORT = 10000;
+
+    private static final String CSV_HEADER = "label,peers,agents,new_peers,"
+            + "join_msec_mean,join_msec_p99,join_msec_max,heap_bytes_per_peer,"
+            + "queries,parallel,area,queries_per_sec,"
+            + "first_msec_p50,first_msec_p99,complete_msec_p50,complete_msec_p90,complete_msec_p99,"
+            + "responses_mean,expected_mean,recall,timeouts";
+
+    private int[] sizes = { 10, 100, 1000 };
+    private int agentsPerPeer = 1;
+    private int queries = 200;
+    private int parallel = 8;
+    private double area = 0.01;
+    private long settle = 1000;
+    private long timeout = 10000;
+    private long seed = 1;
+    private String label = "";
+    private File out = new File("overlay-scaling.csv");
+
+    private final List<AgentPeer> peers = new ArrayList<AgentPeer>();
+    // Locations of all agents placed, as x, y pairs.
+    private final List<double[]> locations = new ArrayList<double[]>();
+    private Random random;
+    private long baseHeap;
+
+    public static void main(String[] args) throws Exception {
+        OverlayScalingBenchmark bench = new OverlayScalingBenchmark();
+        try {
+            bench.parse(args);
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException.
+            System.err.println(e.getMessage());
+            System.err.println("Usage: OverlayScalingBenchmark [--sizes 10,100,1000] [--agents N]"
+                    + " [--queries N] [--parallel N] [--area fraction] [--settle msec]"
+                    + " [--timeout msec] [--seed N] [--label name] [--out file]");
+            System.exit(1);
+        }
+        try {
+            bench.run();
+        } finally {
+            bench.fin();
+        }
+        // PIAX leaves non-daemon threads.
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith("--") || args.length <= i + 1)
+                throw new IllegalArgumentException("bad option " + name + ".");
+            String value = args[++i];
+            if (name.equals("--sizes")) {
+                String[] ss = value.split(",");
+                sizes = new int[ss.length];
+                for (int j = 0; j < ss.length; j++) {
+                    sizes[j] = Integer.parseInt(ss[j].trim());
+                }
+            } else if (name.equals("--agents")) {
+                agentsPerPeer = Integer.parseInt(value);
+            } else if (name.equals("--queries")) {
+                queries = Integer.parseInt(value);
+            } else if (name.equals("--parallel")) {
+                parallel = Integer.parseInt(value);
+            } else if (name.equals("--area")) {
+                area = Double.parseDouble(value);
+            } else if (name.equals("--settle")) {
+                settle = Long.parseLong(value);
+            } else if (name.equals("--timeout")) {
+                timeout = Long.parseLong(value);
+            } else if (name.equals("--seed")) {
+                seed = Long.parseLong(value);
+            } else if (name.equals("--label")) {
+                label = value;
+            } else if (name.equals("--out")) {
+                out = new File(value);
+            } else {
+                throw new IllegalArgumentException("unknown option " + name + ".");
+            }
+        }
+        for (int size : sizes) {
+            if (size < 1)
+                throw new IllegalArgumentException("sizes should be 1 or more.");
+        }
+        if (agentsPerPeer < 1 || queries < 1 || parallel < 1 || timeout < 1)
+            throw new IllegalArgumentException("agents, queries, parallel and timeout should be 1 or more.");
+        if (area <= 0 || 1 < area)
+            throw new IllegalArgumentException("area should be more than 0 and 1 or less.");
+    }
+
+    private void run() throws Exception {
+        random = new Random(seed);
+        int[] ordered = sizes.clone();
+        Arrays.sort(ordered);
+        baseHeap = usedHeap();
+
+        boolean header = !out.exists() || out.length() == 0;
+        PrintWriter csv = new PrintWriter(new FileWriter(out, true));
+        try {
+            if (header)
+                csv.println(CSV_HEADER);
+            for (int size : ordered) {
+                String row = measure(size);
+                csv.println(row);
+                csv.flush();
+                System.err.println(row);
+            }
+        } finally {
+            csv.close();
+        }
+    }
+
+    /**
+     * Grow the overlay to the size and measure it.
+     *
+     * @return a CSV row.
+     */
+    private String measure(int size) throws Exception {
+        // Join new peers one by one. The first peer is the seed.
+        LatencyHistogram join = new LatencyHistogram();
+        int newPeers = 0;
+        while (peers.size() < size) {
+            int no = peers.size();
+            PeerLocator locator = new EmuLocator(BASE_VPORT + no);
+            PeerLocator seedLocator = no == 0 ? locator : new EmuLocator(BASE_VPORT);
+            AgentPeer peer = new AgentPeer(null, "ov" + no, locator,
+                    Collections.singleton(seedLocator), false, new File("."));
+            peers.add(peer);
+            long start = System.nanoTime();
+            peer.online();
+            join.record(System.nanoTime() - start);
+            newPeers++;
+
+            AgentHome home = peer.getHome();
+            for (int i = 0; i < agentsPerPeer; i++) {
+                AgentId agId = home.createAgent(OverlayBenchAgent.class.getName(), "ov" + no + "-" + i);
+                double x = random.nextDouble() * SPACE;
+                double y = random.nextDouble() * SPACE;
+                home.call(agId, "place", x, y);
+                locations.add(new double[] { x, y });
+            }
+        }
+        Thread.sleep(settle);
+        long heapPerPeer = (usedHeap() - baseHeap) / peers.size();
+
+        // Rectangles of the area fraction of the space.
+        final double side = SPACE * Math.sqrt(area);
+        final double[][] rects = new double[queries][];
+        long expected = 0;
+        for (int i = 0; i < queries; i++) {
+            double x = random.nextDouble() * (SPACE - side);
+            double y = random.nextDouble() * (SPACE - side);
+            rects[i] = new double[] { x, y };
+            for (double[] loc : locations) {
+                if (x <= loc[0] && loc[0] <= x + side && y <= loc[1] && loc[1] <= y + side)
+                    expected++;
+            }
+        }
+
+        final LatencyHistogram first = new LatencyHistogram();
+        final LatencyHistogram complete = new LatencyHistogram();
+        final AtomicLong responses = new AtomicLong();
+        final AtomicInteger timeouts = new AtomicInteger();
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallel);
+        long stime = System.nanoTime();
+        for (int t = 0; t < parallel; t++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < rects.length) {
+                        AgentPeer origin = peers.get(i % peers.size());
+                        query(origin.getHome(), rects[i][0], rects[i][1], side,
+                                first, complete, responses, timeouts);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        double sec = (System.nanoTime() - stime) / 1000000000.0;
+
+        double responsesMean = (double) responses.get() / queries;
+        double expectedMean = (double) expected / queries;
+        return String.format(Locale.US,
+                "%s,%d,%d,%d,%s,%s,%s,%d,%d,%d,%s,%.1f,%s,%s,%s,%s,%s,%.2f,%.2f,%.3f,%d",
+                label, peers.size(), locations.size(), newPeers,
+                LatencyHistogram.toMillis(join.getMean()),
+                LatencyHistogram.toMillis(join.getValueAtPercentile(99)),
+                LatencyHistogram.toMillis(join.getMax()),
+                heapPerPeer, queries, parallel, area, queries / sec,
+                LatencyHistogram.toMillis(first.getValueAtPercentile(50)),
+                LatencyHistogram.toMillis(first.getValueAtPercentile(99)),
+                LatencyHistogram.toMillis(complete.getValueAtPercentile(50)),
+                LatencyHistogram.toMillis(complete.getValueAtPercentile(90)),
+                LatencyHistogram.toMillis(complete.getValueAtPercentile(99)),
+                responsesMean, expectedMean,
+                expected == 0 ? 1.0 : (double) responses.get() / expected,
+                timeouts.get());
+    }
+
+    /**
+     * Discover agents in a rectangle and receive all returns.
+     */
+    private void query(AgentHome home, double x, double y, double side,
+            LatencyHistogram first, LatencyHistogram complete,
+            AtomicLong responses, AtomicInteger timeouts) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        String query = String.format(Locale.US, "%s inside rect(%f, %f, %f, %f)",
+                AgentConfigValues.LOCATION_ATTRIB_NAME, x, y, side, side);
+        ReturnSet<Object> rset;
+        try {
+            rset = home.discoveryCallAsync(query, "echo", "q");
+        } catch (Exception e) {
+            timeouts.incrementAndGet();
+            return;
+        }
+        boolean received = false;
+        while (rset.hasNext()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                timeouts.incrementAndGet();
+                rset.cancel();
+                break;
+            }
+            try {
+                rset.getNext((remaining + 999999) / 1000000);
+            } catch (InterruptedException e) {
+                timeouts.incrementAndGet();
+                rset.cancel();
+                break;
+            } catch (NoSuchElementException e) {
+                break;
+            } catch (InvocationTargetException e) {
+                // Counted as a response. The agent was found.
+            }
+            if (!received) {
+                first.record(System.nanoTime() - start);
+                received = true;
+            }
+            responses.incrementAndGet();
+        }
+        complete.record(System.nanoTime() - start);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private void fin() {
+        for (AgentPeer peer : peers) {
+            try {
+                peer.fin();
+            } catch (RuntimeException e) {
+                // Continue finalizing others.
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures command line tokenizing by CommandTokenizer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TokenizeBenchmark {
+    @Param({ "simple", "quoted", "long" })
+    public String kind;
+
+    private final CommandTokenizer tokenizer = new CommandTokenizer();
+    private String line;
+
+    @Setup
+    public void setup() {
+        if (kind.equals("simple")) {
+            line = "call 0 echo hello";
+        } else if (kind.equals("quoted")) {
+            line = "call aid:0123456789abcdef echo \"hello world\" \"say \\\"hi\\\"\" plain";
+        } else {
+            StringBuilder sb = new StringBuilder("discover \"$name eq \\\"Echo\\\"\" echo");
+            for (int i = 0; i < 32; i++) {
+                sb.append(" arg").append(i);
+            }
+            line = sb.toString();
+        }
+    }
+
+    @Benchmark
+    public CommandLine tokenize() {
+        return tokenizer.tokenize(line);
+    }
+}
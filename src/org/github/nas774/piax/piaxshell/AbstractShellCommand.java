@@ -0,0 +1,47 @@
+package org.github.nas774.piax.piaxshell;
+
+/**
+ * Base class of commands which hold names and arity as fields.
+ */
+public abstract class AbstractShellCommand implements ShellCommand {
+    private final String[] names;
+    private final int minArgs;
+    private final int maxArgs;
+    private final String usage;
+
+    /**
+     * @param minArgs
+     *            minimum number of tokens including the command name.
+     * @param maxArgs
+     *            maximum number of tokens including the command name, or -1
+     *            if unlimited.
+     * @param usage
+     *            usage shown in help message, or null.
+     * @param names
+     *            the command name and aliases.
+     */
+    protected AbstractShellCommand(int minArgs, int maxArgs, String usage, String... names) {
+        if (names == null || names.length == 0)
+            throw new IllegalArgumentException("A command requires a name.");
+        this.names = names;
+        this.minArgs = minArgs;
+        this.maxArgs = maxArgs;
+        this.usage = usage;
+    }
+
+    public String[] getNames() {
+        return names;
+    }
+
+    public int getMinArgs() {
+        return minArgs;
+    }
+
+    public int getMaxArgs() {
+        return maxArgs;
+    }
+
+    public String getUsage() {
+        return usage;
+    }
+}
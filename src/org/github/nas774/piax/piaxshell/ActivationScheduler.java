@@ -0,0 +1,288 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.piax.agent.AgentHome;
+import org.piax.agent.AgentId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls activate of agents with a limited number of threads.
+ *
+ * Agents are activated in stages by priority, higher first. A stage starts
+ * after all agents of the previous stage returned from activate. The
+ * scheduler is ready when all agents returned, including those failed.
+ *
+ * Agents added after start, such as agents reloaded, are activated by
+ * another round after the current one, and counted with the others.
+ * {@link #shutdown()} stops activation for good.
+ */
+final class ActivationScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(ActivationScheduler.class);
+
+    static final int DEFAULT_PRIORITY = 0;
+
+    private static final int SLOWEST_TO_LOG = 5;
+
+    private final AgentHome home;
+    private final int concurrency;
+    // priority to agents, higher first.
+    // Agents not activated yet.
+    private final TreeMap<Integer, List<AgentId>> stages =
+            new TreeMap<Integer, List<AgentId>>(Collections.reverseOrder());
+    private final Set<AgentId> added = new HashSet<AgentId>();
+    private int total = 0;
+    private int stageCount = 0;
+    // true while a round runs.
+    private boolean running = false;
+    private boolean shutdown = false;
+    private Thread thread = null;
+    private ExecutorService executor = null;
+    private volatile boolean ready = false;
+
+    private final AtomicInteger activated = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    // Activation time of each agent in nanosec, in the order returned.
+    private final Map<AgentId, Long> times = new LinkedHashMap<AgentId, Long>();
+    private volatile long stime = 0;
+    private volatile long etime = 0;
+
+    /**
+     * @param home
+     *            home of agents.
+     * @param concurrency
+     *            max number of agents activating at a time.
+     */
+    ActivationScheduler(AgentHome home, int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("concurrency should be 1 or more.");
+        this.home = home;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Add an agent to activate. It is activated by {@link #start()}. Does
+     * nothing if already added.
+     */
+    synchronized void add(AgentId id, int priority) {
+        if (shutdown || !added.add(id))
+            return;
+        List<AgentId> stage = stages.get(priority);
+        if (stage == null) {
+            stage = new ArrayList<AgentId>();
+            stages.put(priority, stage);
+        }
+        stage.add(id);
+        total++;
+    }
+
+    /**
+     * Start activating agents added in a background thread. If a round is
+     * running, agents added are activated after it.
+     */
+    synchronized void start() {
+        if (shutdown)
+            return;
+        ready = false;
+        if (running)
+            return;
+        running = true;
+        stime = System.nanoTime();
+        // Threads are created as agents are submitted, up to concurrency.
+        executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "AgentActivator-" + count.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        final ExecutorService roundExecutor = executor;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                activateAll(roundExecutor);
+            }
+        }, "ActivationScheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop activating. Agents not activated yet are not activated, and
+     * activate running is interrupted. The scheduler is not ready after this.
+     */
+    void shutdown() {
+        ExecutorService roundExecutor;
+        synchronized (this) {
+            if (shutdown)
+                return;
+            shutdown = true;
+            ready = false;
+            stages.clear();
+            roundExecutor = executor;
+            if (thread != null)
+                thread.interrupt();
+        }
+        if (roundExecutor != null)
+            roundExecutor.shutdownNow();
+    }
+
+    private void activateAll(ExecutorService executor) {
+        boolean completed = false;
+        try {
+            while (true) {
+                List<List<AgentId>> ordered;
+                synchronized (this) {
+                    if (stages.isEmpty()) {
+                        completed = !shutdown;
+                        finish();
+                        break;
+                    }
+                    ordered = new ArrayList<List<AgentId>>(stages.values());
+                    stages.clear();
+                    stageCount += ordered.size();
+                }
+                activateStages(executor, ordered);
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while activating agents.");
+        } catch (RejectedExecutionException e) {
+            logger.warn("Activation is shut down.");
+        } finally {
+            executor.shutdownNow();
+            // Ready even if interrupted, not to wait forever.
+            synchronized (this) {
+                if (running)
+                    finish();
+            }
+        }
+        logReady(completed);
+    }
+
+    // Called with the lock held.
+    private void finish() {
+        etime = System.nanoTime();
+        running = false;
+        thread = null;
+        executor = null;
+        // Not ready if shut down.
+        ready = !shutdown;
+    }
+
+    private void activateStages(ExecutorService executor, List<List<AgentId>> ordered)
+            throws InterruptedException {
+        for (List<AgentId> stage : ordered) {
+            final CountDownLatch done = new CountDownLatch(stage.size());
+            for (final AgentId id : stage) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            activate(id);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        }
+    }
+
+    private void activate(AgentId id) {
+        long start = System.nanoTime();
+        try {
+            home.call(id, "activate", new Object[] {});
+            activated.incrementAndGet();
+        } catch (Exception e) {
+            if (failed.incrementAndGet() == 1) {
+                // Avoid flooding the log by the same error.
+                logger.warn("Failed activating an agent. ID:" + id, e);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        synchronized (times) {
+            times.put(id, nanos);
+        }
+        logger.debug("Activated an agent. ID:" + id
+                + " time(msec):" + TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    private void logReady(boolean completed) {
+        logger.info((completed ? "Agents activated." : "Agent activation stopped.")
+                + " agents:" + total
+                + " activated:" + activated.get()
+                + " failed:" + failed.get()
+                + " stages:" + stageCount
+                + " concurrency:" + concurrency
+                + " time(msec):" + TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()));
+        List<Map.Entry<AgentId, Long>> slowest =
+                new ArrayList<Map.Entry<AgentId, Long>>(getTimes().entrySet());
+        Collections.sort(slowest, new Comparator<Map.Entry<AgentId, Long>>() {
+            public int compare(Map.Entry<AgentId, Long> a, Map.Entry<AgentId, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        StringBuilder sb = new StringBuilder("Slowest activations (msec).");
+        for (int i = 0; i < slowest.size() && i < SLOWEST_TO_LOG; i++) {
+            sb.append(' ').append(slowest.get(i).getKey()).append(':')
+                    .append(TimeUnit.NANOSECONDS.toMillis(slowest.get(i).getValue()));
+        }
+        logger.info(sb.toString());
+    }
+
+    /**
+     * @return true if all agents returned from activate, or activation was
+     *         interrupted. false after shutdown.
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    synchronized int getTotal() {
+        return total;
+    }
+
+    int getActivated() {
+        return activated.get();
+    }
+
+    int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return time of the last round until ready, or so far if not ready.
+     */
+    long getElapsedNanos() {
+        if (stime == 0)
+            return 0;
+        return (isReady() ? etime : System.nanoTime()) - stime;
+    }
+
+    /**
+     * @return activation time of agents returned in nanosec, in the order
+     *         returned.
+     */
+    Map<AgentId, Long> getTimes() {
+        synchronized (times) {
+            return new LinkedHashMap<AgentId, Long>(times);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.piax.agent.AgentHome;
+import org.piax.agent.AgentId;
+import org.piax.agent.NoSuchAgentException;
+
+/**
+ * Index of agents on a home by number, ID and name.
+ *
+ * Numbers are given in the order agents are added and are not reused, so
+ * the number of an agent does not change while it is indexed. A peer has
+ * one index. It is updated as the shell creates, restores, reloads, sleeps,
+ * wakes or destroys agents, and refreshed from the home only on demand to
+ * catch agents created or destroyed by others. Thread safe.
+ */
+final class AgentIndex {
+    static final class Entry {
+        final int no;
+        final AgentId id;
+        final String name;
+        volatile boolean sleeping;
+
+        Entry(int no, AgentId id, String name, boolean sleeping) {
+            this.no = no;
+            this.id = id;
+            this.name = name;
+            this.sleeping = sleeping;
+        }
+    }
+
+    // Keyed by number. Numbers of removed agents are not kept.
+    private final TreeMap<Integer, Entry> byNo = new TreeMap<Integer, Entry>();
+    private int nextNo = 0;
+    private final Map<AgentId, Entry> byId = new HashMap<AgentId, Entry>();
+    private final Map<String, List<Entry>> byName = new HashMap<String, List<Entry>>();
+    // Number of entries sleeping.
+    private int sleeping = 0;
+
+    /**
+     * Add an agent. Does nothing if already indexed.
+     *
+     * @return the entry of the agent.
+     */
+    synchronized Entry add(AgentId id, String name, boolean sleeping) {
+        Entry entry = byId.get(id);
+        if (entry != null)
+            return entry;
+        entry = new Entry(nextNo++, id, name, sleeping);
+        if (sleeping)
+            this.sleeping++;
+        byNo.put(entry.no, entry);
+        byId.put(id, entry);
+        List<Entry> named = byName.get(name);
+        if (named == null) {
+            named = new ArrayList<Entry>(1);
+            byName.put(name, named);
+        }
+        named.add(entry);
+        return entry;
+    }
+
+    synchronized void remove(AgentId id) {
+        Entry entry = byId.remove(id);
+        if (entry == null)
+            return;
+        byNo.remove(entry.no);
+        if (entry.sleeping)
+            sleeping--;
+        List<Entry> named = byName.get(entry.name);
+        named.remove(entry);
+        if (named.isEmpty())
+            byName.remove(entry.name);
+    }
+
+    synchronized void setSleeping(AgentId id, boolean sleeping) {
+        Entry entry = byId.get(id);
+        if (entry != null)
+            setSleeping(entry, sleeping);
+    }
+
+    private void setSleeping(Entry entry, boolean sleeping) {
+        if (entry.sleeping != sleeping) {
+            entry.sleeping = sleeping;
+            this.sleeping += sleeping ? 1 : -1;
+        }
+    }
+
+    /**
+     * @return the entry, or null if no agent has the number.
+     */
+    synchronized Entry get(int no) {
+        return byNo.get(no);
+    }
+
+    synchronized Entry get(AgentId id) {
+        return byId.get(id);
+    }
+
+    /**
+     * @return entries of agents which have the name. Empty if none.
+     */
+    synchronized List<Entry> getByName(String name) {
+        List<Entry> named = byName.get(name);
+        if (named == null)
+            return Collections.emptyList();
+        return new ArrayList<Entry>(named);
+    }
+
+    synchronized int size() {
+        return byId.size();
+    }
+
+    /**
+     * @return number of sleeping agents.
+     */
+    synchronized int sleepingCount() {
+        return sleeping;
+    }
+
+    /**
+     * Synchronize with agents on the home. Agents already indexed keep
+     * their numbers.
+     */
+    synchronized void refresh(AgentHome home) {
+        Set<AgentId> ids = new HashSet<AgentId>(home.getAgentIds());
+        for (AgentId id : new ArrayList<AgentId>(byId.keySet())) {
+            if (!ids.contains(id))
+                remove(id);
+        }
+        for (AgentId id : ids) {
+            try {
+                Entry entry = byId.get(id);
+                if (entry == null) {
+                    add(id, home.getAgentName(id), home.isAgentSleeping(id));
+                } else {
+                    setSleeping(entry, home.isAgentSleeping(id));
+                }
+            } catch (NoSuchAgentException e) {
+                // destroyed meanwhile.
+                remove(id);
+            }
+        }
+    }
+
+    /**
+     * List agents in the order of numbers.
+     *
+     * @param from
+     *            the first number.
+     * @param namePattern
+     *            name pattern by glob, or null for any name.
+     * @param sleepingOnly
+     *            true to list only sleeping agents.
+     * @param limit
+     *            max number of entries.
+     * @param result
+     *            receives entries.
+     * @return number of matched agents not listed because of the limit.
+     */
+    synchronized int list(int from, String namePattern, boolean sleepingOnly,
+            int limit, List<Entry> result) {
+        Pattern pattern = namePattern == null ? null : globToPattern(namePattern);
+        int rest = 0;
+        for (Entry entry : byNo.tailMap(Math.max(from, 0)).values()) {
+            if (sleepingOnly && !entry.sleeping)
+                continue;
+            if (pattern != null
+                    && (entry.name == null || !pattern.matcher(entry.name).matches()))
+                continue;
+            if (result.size() < limit) {
+                result.add(entry);
+            } else {
+                rest++;
+            }
+        }
+        return rest;
+    }
+
+    /**
+     * @param glob
+     *            pattern which has '*' for any characters and '?' for a
+     *            character.
+     */
+    static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (start < i)
+                    regex.append(Pattern.quote(glob.substring(start, i)));
+                regex.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length())
+            regex.append(Pattern.quote(glob.substring(start)));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -0,0 +1,156 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches an agent property directory and reports changed files in batches.
+ *
+ * Events are collected until no event arrives for the debounce time, so a
+ * burst of changes, such as copying many files at once, is reported as one
+ * batch. A batch is reported at the latest after MAX_DELAY_FACTOR times the
+ * debounce time even if events keep arriving.
+ */
+final class AgentPropertyWatcher {
+    private static final Logger logger = LoggerFactory.getLogger(AgentPropertyWatcher.class);
+
+    private static final int MAX_DELAY_FACTOR = 10;
+
+    /**
+     * Receives changed files.
+     */
+    interface Listener {
+        /**
+         * Called by the watcher thread.
+         *
+         * @param files
+         *            files created, modified or deleted, in the order first
+         *            changed.
+         * @param overflow
+         *            true if events were lost. The listener should check all
+         *            files of the directory.
+         */
+        void changed(Set<File> files, boolean overflow);
+    }
+
+    private final Path dir;
+    private final long debounce;
+    private final Listener listener;
+    private final WatchService watcher;
+    private final Thread thread;
+
+    /**
+     * @param dir
+     *            directory to watch.
+     * @param debounce
+     *            msec without events to wait before reporting a batch.
+     * @param listener
+     *            receives batches.
+     * @throws IOException
+     *             if the directory can not be watched.
+     */
+    AgentPropertyWatcher(File dir, long debounce, Listener listener) throws IOException {
+        this.dir = dir.getAbsoluteFile().toPath();
+        this.debounce = debounce;
+        this.listener = listener;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        try {
+            this.dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            watcher.close();
+            throw e;
+        }
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                watchLoop();
+            }
+        }, "AgentPropertyWatcher");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void close() {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                Set<File> files = new LinkedHashSet<File>();
+                WatchKey key = watcher.take();
+                boolean overflow = collect(key, files);
+                long limit = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(debounce * MAX_DELAY_FACTOR);
+                while (System.nanoTime() - limit < 0
+                        && (key = watcher.poll(debounce, TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= collect(key, files);
+                }
+                if (files.isEmpty() && !overflow)
+                    continue;
+                logger.info("Agent property files changed. files:" + files.size()
+                        + (overflow ? " <overflow>" : ""));
+                try {
+                    listener.changed(files, overflow);
+                } catch (RuntimeException e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+        } catch (ClosedWatchServiceException e) {
+        }
+    }
+
+    /**
+     * @return true if events were lost.
+     */
+    private boolean collect(WatchKey key, Set<File> files) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path name = (Path) event.context();
+            if (isIgnored(name.toString()))
+                continue;
+            files.add(dir.resolve(name).toFile());
+        }
+        if (!key.reset()) {
+            logger.warn("Agent property directory is no longer watched. : " + dir);
+        }
+        return overflow;
+    }
+
+    /**
+     * @return true for hidden and backup files of editors.
+     */
+    static boolean isIgnored(String name) {
+        return name.startsWith(".") || name.endsWith("~");
+    }
+}
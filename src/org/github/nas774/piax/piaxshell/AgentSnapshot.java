@@ -0,0 +1,236 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.piax.agent.AgentHome;
+import org.piax.agent.AgentId;
+
+/**
+ * A file which has agents saved by AgentHome.saveAgent, one after another,
+ * compressed by gzip.
+ *
+ * Each record has the agent property file the agent was created from and
+ * its last modified time, so a restore can tell a stale record from the
+ * current property file. Records are written and read one by one through a
+ * temporary file, so the snapshot is never held in memory as a whole.
+ */
+final class AgentSnapshot {
+    private static final int MAGIC = 0x50415853; // "PAXS"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Header of a record.
+     */
+    static final class Entry {
+        /** Absolute agent property file, or null if not created by a file. */
+        final File file;
+        /** Last modified time of the file at the checkpoint. */
+        final long lastModified;
+        final int priority;
+        /** Name of the agent, or null if it has no name. */
+        final String name;
+
+        Entry(File file, long lastModified, int priority, String name) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.priority = priority;
+            this.name = name;
+        }
+
+        /**
+         * @return true if the property file is deleted or modified after
+         *         the checkpoint.
+         */
+        boolean isStale() {
+            return file != null && (!file.isFile() || file.lastModified() != lastModified);
+        }
+    }
+
+    private AgentSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot. Records go to a temporary file, which replaces the
+     * snapshot on commit, so a failed checkpoint keeps the previous one.
+     */
+    static final class Writer {
+        private final File target;
+        private final File tmp;
+        private final DataOutputStream out;
+        private int count = 0;
+
+        Writer(File target) throws IOException {
+            this.target = target;
+            this.tmp = new File(target.getPath() + ".tmp");
+            this.out = new DataOutputStream(new GZIPOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)), BUFFER_SIZE));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        /**
+         * Save an agent and append it.
+         *
+         * @param work
+         *            a temporary file saveAgent writes to.
+         * @throws Exception
+         *             thrown by saveAgent or by a header which can not be
+         *             written. Nothing is appended.
+         */
+        void add(AgentHome home, AgentId id, Entry entry, File work) throws Exception {
+            home.saveAgent(id, work);
+            try {
+                // Build the header first, so a bad one appends nothing and
+                // later records stay aligned.
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                DataOutputStream header = new DataOutputStream(buf);
+                header.writeBoolean(true);
+                header.writeUTF(entry.file != null ? entry.file.getPath() : "");
+                header.writeLong(entry.lastModified);
+                header.writeInt(entry.priority);
+                header.writeUTF(entry.name != null ? entry.name : "");
+                header.writeLong(work.length());
+                buf.writeTo(out);
+                InputStream in = new FileInputStream(work);
+                try {
+                    copy(in, out, work.length());
+                } finally {
+                    in.close();
+                }
+            } finally {
+                work.delete();
+            }
+            count++;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        void commit() throws IOException {
+            out.writeBoolean(false);
+            out.close();
+            if (target.exists() && !target.delete())
+                throw new IOException("cannot replace " + target.getPath());
+            if (!tmp.renameTo(target))
+                throw new IOException("cannot rename " + tmp.getPath());
+        }
+
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // deleted anyway.
+            }
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Reads a snapshot record by record.
+     */
+    static final class Reader {
+        private final DataInputStream in;
+        private long remaining = 0;
+
+        Reader(File source) throws IOException {
+            this.in = new DataInputStream(new GZIPInputStream(
+                    new BufferedInputStream(new FileInputStream(source)), BUFFER_SIZE));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    throw new IOException("not an agent snapshot. : " + source.getPath());
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Skip the rest of the current record and read the next header.
+         *
+         * @return the header, or null at the end.
+         */
+        Entry next() throws IOException {
+            skip();
+            if (!in.readBoolean())
+                return null;
+            String path = in.readUTF();
+            long lastModified = in.readLong();
+            int priority = in.readInt();
+            String name = in.readUTF();
+            remaining = in.readLong();
+            return new Entry(path.equals("") ? null : new File(path), lastModified, priority,
+                    name.equals("") ? null : name);
+        }
+
+        /**
+         * Restore the agent of the current record.
+         *
+         * @param work
+         *            a temporary file restoreAgent reads from.
+         * @return ID of the agent.
+         */
+        AgentId restore(AgentHome home, File work) throws Exception {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(work));
+            try {
+                copy(in, out, remaining);
+                remaining = 0;
+            } finally {
+                out.close();
+            }
+            try {
+                return home.restoreAgent(work);
+            } finally {
+                // restoreAgent deletes the file if succeeded.
+                work.delete();
+            }
+        }
+
+        private void skip() throws IOException {
+            while (0 < remaining) {
+                long n = in.skip(remaining);
+                if (n <= 0)
+                    throw new EOFException();
+                remaining -= n;
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to do.
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+        while (0 < length) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, length));
+            if (n < 0)
+                throw new EOFException();
+            out.write(buf, 0, n);
+            length -= n;
+        }
+    }
+}
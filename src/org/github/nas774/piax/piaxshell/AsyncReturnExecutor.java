@@ -0,0 +1,380 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor of tasks which handle returns of async calls.
+ *
+ * PIAX async returns have no completion callback, so a few poller threads
+ * sweep all pending tasks and let each handle the returns arrived. No thread
+ * waits for a particular return, and the number of threads does not depend
+ * on the number of pending tasks.
+ *
+ * The number of tasks in flight is limited. When the limit is reached, a new
+ * task is handled by the policy. A task not done within the timeout is
+ * expired and frees its slot, so returns which never arrive, such as those
+ * of a peer gone offline, do not hold slots forever.
+ */
+final class AsyncReturnExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncReturnExecutor.class);
+
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_MAX_IN_FLIGHT = 100000;
+    static final long DEFAULT_TIMEOUT = 60000;
+
+    /** Sleep of a poller after a sweep which handled no return. */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    enum Policy {
+        /** wait until a task in flight completes. */
+        BLOCK,
+        /** reject the task. */
+        REJECT,
+        /** handle returns of the task in the submitting thread. */
+        CALLER;
+
+        /**
+         * @param name
+         *            block, reject or caller.
+         * @return a policy.
+         * @throws IllegalArgumentException
+         *             if the name is unknown.
+         */
+        static Policy of(String name) {
+            if (name.equals("block"))
+                return BLOCK;
+            if (name.equals("reject"))
+                return REJECT;
+            if (name.equals("caller"))
+                return CALLER;
+            throw new IllegalArgumentException("unknown policy " + name + ".");
+        }
+    }
+
+    /**
+     * A task which issues an async call and handles the returns.
+     */
+    interface Task {
+        /**
+         * Issue an async call. Called in the submitting thread after a slot
+         * is reserved, so a rejected task issues nothing.
+         */
+        void issue() throws Exception;
+
+        /**
+         * Handle returns arrived so far. Must not block.
+         *
+         * @return true if all returns are handled.
+         */
+        boolean poll();
+
+        /**
+         * Called instead of poll when the task is not done within the
+         * timeout. Cancel the call and report it. Must not block.
+         */
+        void expire();
+    }
+
+    /**
+     * Tells a caller handling returns of its task by CALLER policy to stop.
+     */
+    interface Bound {
+        /**
+         * @return true if the caller should stop.
+         */
+        boolean reached();
+    }
+
+    private final int maxInFlight;
+    private final Policy policy;
+    private final long timeoutNanos;
+    private final Semaphore slots;
+    private final Poller[] pollers;
+    private final AtomicInteger nextPoller = new AtomicInteger();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    AsyncReturnExecutor() {
+        this(DEFAULT_THREADS, DEFAULT_MAX_IN_FLIGHT, Policy.BLOCK, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param threads
+     *            number of poller threads.
+     * @param maxInFlight
+     *            max number of pending tasks.
+     * @param policy
+     *            how to handle a task when maxInFlight tasks are in flight.
+     * @param timeout
+     *            msec after which a task not done is expired.
+     */
+    AsyncReturnExecutor(int threads, int maxInFlight, Policy policy, long timeout) {
+        if (threads < 1 || maxInFlight < 1 || timeout < 1)
+            throw new IllegalArgumentException("threads, maxInFlight and timeout should be 1 or more.");
+        this.maxInFlight = maxInFlight;
+        this.policy = policy;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.slots = new Semaphore(maxInFlight);
+        this.pollers = new Poller[threads];
+        for (int i = 0; i < threads; i++) {
+            pollers[i] = new Poller("AsyncReturnPoller-" + (i + 1));
+            pollers[i].start();
+        }
+    }
+
+    /**
+     * Reserve a slot, issue the call of the task and hand the task to a
+     * poller.
+     *
+     * @throws RejectedExecutionException
+     *             if the policy is REJECT and no slot is available.
+     * @throws InterruptedException
+     *             if interrupted while waiting for a slot.
+     * @throws Exception
+     *             thrown by {@link Task#issue()}.
+     */
+    void execute(Task task) throws Exception {
+        execute(task, null);
+    }
+
+    /**
+     * Same as {@link #execute(Task)}, but a caller handling returns by
+     * CALLER policy stops when the bound is reached.
+     *
+     * @param bound
+     *            bound of the caller, or null to handle all returns.
+     * @return false if the caller stopped by the bound before the task is
+     *         done. The task is left as is, and the caller should cancel it.
+     */
+    boolean execute(Task task, Bound bound) throws Exception {
+        boolean reserved;
+        if (policy == Policy.BLOCK) {
+            slots.acquire();
+            reserved = true;
+        } else {
+            reserved = slots.tryAcquire();
+            if (!reserved && policy == Policy.REJECT) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException(maxInFlight + " async returns are in flight.");
+            }
+        }
+
+        if (!reserved) {
+            // CALLER policy. Waiting in the caller slows down the caller.
+            callerRuns.incrementAndGet();
+            task.issue();
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (!pollQuietly(task)) {
+                if (bound != null && bound.reached())
+                    return false;
+                if (deadline - System.nanoTime() <= 0) {
+                    expireQuietly(task);
+                    return true;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+            completed.incrementAndGet();
+            return true;
+        }
+
+        try {
+            task.issue();
+        } catch (Exception e) {
+            slots.release();
+            throw e;
+        }
+        updatePeak(inFlight.incrementAndGet());
+        queued.incrementAndGet();
+        Poller poller = pollers[(nextPoller.getAndIncrement() & Integer.MAX_VALUE) % pollers.length];
+        poller.incoming.offer(new Pending(task, System.nanoTime() + timeoutNanos));
+        LockSupport.unpark(poller);
+        return true;
+    }
+
+    private void updatePeak(int n) {
+        while (true) {
+            int peak = peakInFlight.get();
+            if (n <= peak || peakInFlight.compareAndSet(peak, n))
+                return;
+        }
+    }
+
+    /**
+     * @return true if the task is done or failed.
+     */
+    private static boolean pollQuietly(Task task) {
+        try {
+            return task.poll();
+        } catch (RuntimeException e) {
+            logger.warn(e.getMessage(), e);
+            return true;
+        }
+    }
+
+    private void expireQuietly(Task task) {
+        expired.incrementAndGet();
+        try {
+            task.expire();
+        } catch (RuntimeException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A task in flight and its deadline.
+     */
+    private static final class Pending {
+        final Task task;
+        // System.nanoTime() to expire.
+        final long deadline;
+
+        Pending(Task task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * A thread which sweeps its own pending tasks.
+     */
+    private final class Poller extends Thread {
+        final Queue<Pending> incoming = new ConcurrentLinkedQueue<Pending>();
+        // Accessed only by this thread.
+        private final List<Pending> pending = new ArrayList<Pending>();
+        private volatile boolean running = true;
+
+        Poller(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Pending task;
+                while ((task = incoming.poll()) != null) {
+                    queued.decrementAndGet();
+                    pending.add(task);
+                }
+
+                // Poll all, compacting the list in place.
+                int done = 0;
+                int size = pending.size();
+                long now = System.nanoTime();
+                for (int i = 0; i < size; i++) {
+                    task = pending.get(i);
+                    boolean finished = pollQuietly(task.task);
+                    if (finished) {
+                        completed.incrementAndGet();
+                    } else if (task.deadline - now <= 0) {
+                        expireQuietly(task.task);
+                        finished = true;
+                    }
+                    if (finished) {
+                        done++;
+                        inFlight.decrementAndGet();
+                        slots.release();
+                    } else if (done != 0) {
+                        pending.set(i - done, task);
+                    }
+                }
+                for (int i = 0; i < done; i++) {
+                    pending.remove(pending.size() - 1);
+                }
+
+                if (done == 0 && incoming.isEmpty()) {
+                    if (pending.isEmpty()) {
+                        LockSupport.park(this);
+                    } else {
+                        LockSupport.parkNanos(this, IDLE_NANOS);
+                    }
+                }
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            LockSupport.unpark(this);
+        }
+    }
+
+    Policy getPolicy() {
+        return policy;
+    }
+
+    int getThreads() {
+        return pollers.length;
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return number of pending tasks, including queued.
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    /**
+     * @return number of tasks not yet taken by pollers.
+     */
+    int getQueued() {
+        return queued.get();
+    }
+
+    long getCompleted() {
+        return completed.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    long getCallerRuns() {
+        return callerRuns.get();
+    }
+
+    /**
+     * @return timeout of a task in msec.
+     */
+    long getTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+
+    /**
+     * @return number of tasks expired by the timeout.
+     */
+    long getExpired() {
+        return expired.get();
+    }
+
+    void shutdown() {
+        for (Poller poller : pollers) {
+            poller.shutdown();
+        }
+    }
+}
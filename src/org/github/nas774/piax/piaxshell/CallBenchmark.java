@@ -0,0 +1,238 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.piax.agent.AgentHome;
+import org.piax.agent.AgentId;
+import org.piax.trans.common.FutureReturn;
+import org.piax.trans.common.PeerId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load generator which calls an agent method many times concurrently.
+ *
+ * call and oneway styles call from concurrency threads. async style keeps
+ * concurrency calls in flight from the calling thread, and checks pending
+ * returns like FanOutCall.
+ */
+final class CallBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(CallBenchmark.class);
+
+    /** Max threads, or calls in flight of async, a run creates. */
+    static final int MAX_CONCURRENCY = 256;
+
+    /** Sleep after a check which found no return. */
+    private static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    enum Style {
+        CALL, ASYNC, ONEWAY;
+
+        /**
+         * @param name
+         *            call, async or oneway.
+         * @return a style.
+         * @throws IllegalArgumentException
+         *             if the name is unknown.
+         */
+        static Style of(String name) {
+            if (name.equals("call"))
+                return CALL;
+            if (name.equals("async"))
+                return ASYNC;
+            if (name.equals("oneway"))
+                return ONEWAY;
+            throw new IllegalArgumentException("unknown call style " + name + ".");
+        }
+    }
+
+    private final AgentHome home;
+    private final PeerId pid;
+    private final AgentId agId;
+    private final String method;
+    private final Object[] args;
+    private final Style style;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicBoolean errorLogged = new AtomicBoolean();
+    private long elapsed = 0;
+
+    /**
+     * @param home
+     *            home which calls.
+     * @param pid
+     *            peer of the target agent, or null if local.
+     * @param agId
+     *            the target agent.
+     * @param method
+     *            method name.
+     * @param args
+     *            method arguments.
+     * @param style
+     *            how to call.
+     */
+    CallBenchmark(AgentHome home, PeerId pid, AgentId agId, String method,
+            Object[] args, Style style) {
+        this.home = home;
+        this.pid = pid;
+        this.agId = agId;
+        this.method = method;
+        this.args = args;
+        this.style = style;
+    }
+
+    /**
+     * Call the method count times by concurrency threads, or with
+     * concurrency calls in flight for async, and wait all.
+     *
+     * @throws IllegalArgumentException
+     *             if concurrency is more than MAX_CONCURRENCY.
+     */
+    void run(int count, int concurrency) throws InterruptedException {
+        if (MAX_CONCURRENCY < concurrency)
+            throw new IllegalArgumentException("concurrency should be "
+                    + MAX_CONCURRENCY + " or less.");
+        if (style == Style.ASYNC) {
+            runAsync(count, concurrency);
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long stime = System.nanoTime();
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                workers.execute(new Runnable() {
+                    public void run() {
+                        LatencyHistogram local = new LatencyHistogram();
+                        try {
+                            while (0 < remaining.getAndDecrement()) {
+                                long t = System.nanoTime();
+                                if (callOnce()) {
+                                    local.record(System.nanoTime() - t);
+                                }
+                            }
+                        } finally {
+                            latency.add(local);
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            elapsed = System.nanoTime() - stime;
+            workers.shutdownNow();
+        }
+    }
+
+    private void runAsync(int count, int concurrency) throws InterruptedException {
+        long stime = System.nanoTime();
+        List<FutureReturn<Object>> pending = new ArrayList<FutureReturn<Object>>(concurrency);
+        List<Long> starts = new ArrayList<Long>(concurrency);
+        int issued = 0;
+        try {
+            while (issued < count || !pending.isEmpty()) {
+                while (pending.size() < concurrency && issued < count) {
+                    issued++;
+                    long t = System.nanoTime();
+                    try {
+                        pending.add(pid == null ? home.callAsync(agId, method, args)
+                                : home.callAsync(pid, agId, method, args));
+                        starts.add(t);
+                    } catch (Exception e) {
+                        error(e);
+                    }
+                }
+
+                boolean progress = false;
+                for (int i = pending.size() - 1; 0 <= i; i--) {
+                    FutureReturn<Object> future = pending.get(i);
+                    if (!future.isDone())
+                        continue;
+                    long nanos = System.nanoTime() - starts.get(i);
+                    try {
+                        future.get();
+                        latency.record(nanos);
+                    } catch (InvocationTargetException e) {
+                        error(e.getCause() != null ? e.getCause() : e);
+                    } catch (RuntimeException e) {
+                        error(e);
+                    }
+                    // Order of pending calls does not matter.
+                    int last = pending.size() - 1;
+                    pending.set(i, pending.get(last));
+                    pending.remove(last);
+                    starts.set(i, starts.get(last));
+                    starts.remove(last);
+                    progress = true;
+                }
+                if (!progress && (pending.size() == concurrency || issued == count)) {
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+        } finally {
+            for (FutureReturn<Object> future : pending)
+                future.cancel();
+            elapsed = System.nanoTime() - stime;
+        }
+    }
+
+    private boolean callOnce() {
+        try {
+            switch (style) {
+            case CALL:
+                if (pid == null) {
+                    home.call(agId, method, args);
+                } else {
+                    home.call(pid, agId, method, args);
+                }
+                break;
+            case ONEWAY:
+                if (pid == null) {
+                    home.callOneway(agId, method, args);
+                } else {
+                    home.callOneway(pid, agId, method, args);
+                }
+                break;
+            }
+            return true;
+        } catch (Exception e) {
+            error(e);
+            return false;
+        }
+    }
+
+    private void error(Throwable e) {
+        errors.incrementAndGet();
+        // Avoid flooding the log by the same error.
+        if (errorLogged.compareAndSet(false, true)) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    long getElapsedNanos() {
+        return elapsed;
+    }
+}
@@ -0,0 +1,79 @@
+package org.github.nas774.piax.piaxshell;
+
+/**
+ * Tokens of a command line.
+ * An instance is reused by CommandTokenizer, so it is valid only until the
+ * next line is tokenized.
+ */
+public final class CommandLine {
+    private String[] tokens = new String[16];
+    private int size = 0;
+
+    CommandLine() {
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            tokens[i] = null;
+        }
+        size = 0;
+    }
+
+    void add(String token) {
+        if (size == tokens.length) {
+            String[] newTokens = new String[size * 2];
+            System.arraycopy(tokens, 0, newTokens, 0, size);
+            tokens = newTokens;
+        }
+        tokens[size++] = token;
+    }
+
+    /**
+     * @return number of tokens including the command name.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index
+     *            0 means the command name.
+     * @return a token.
+     */
+    public String get(int index) {
+        if (index < 0 || size <= index)
+            throw new IndexOutOfBoundsException("index:" + index + " size:" + size);
+        return tokens[index];
+    }
+
+    /**
+     * @return the command name.
+     */
+    public String name() {
+        return get(0);
+    }
+
+    /**
+     * Copy tokens from the given index as arguments of an agent method.
+     * 
+     * @param from
+     *            index of the first argument.
+     * @return a new array. It is safe to hold after the next line is tokenized.
+     */
+    public Object[] args(int from) {
+        if (from >= size)
+            return new Object[0];
+        Object[] args = new Object[size - from];
+        System.arraycopy(tokens, from, args, 0, args.length);
+        return args;
+    }
+
+    /**
+     * @return a new array of all tokens.
+     */
+    public String[] toArray() {
+        String[] array = new String[size];
+        System.arraycopy(tokens, 0, array, 0, size);
+        return array;
+    }
+}
@@ -0,0 +1,118 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Options of a command given as "--name value" or "--flag" just after the
+ * command name. Options end at the first token not beginning with "--", or
+ * at "--" itself.
+ */
+final class CommandOptions {
+    private final Map<String, String> values = new HashMap<String, String>();
+    private int next;
+
+    private CommandOptions() {
+    }
+
+    /**
+     * Parse options.
+     * 
+     * @param args
+     *            tokens of a command line.
+     * @param from
+     *            index of the first option.
+     * @param valueOptions
+     *            names of options which take a value, without "--".
+     * @param flagOptions
+     *            names of options which take no value, without "--".
+     * @return parsed options.
+     * @throws IllegalArgumentException
+     *             if an unknown option is found or a value is missing.
+     */
+    static CommandOptions parse(CommandLine args, int from,
+            String[] valueOptions, String[] flagOptions) {
+        CommandOptions options = new CommandOptions();
+        int i = from;
+        while (i < args.size()) {
+            String token = args.get(i);
+            if (!token.startsWith("--"))
+                break;
+            i++;
+            if (token.length() == 2)
+                break;
+            String name = token.substring(2);
+            if (contains(valueOptions, name)) {
+                if (args.size() <= i)
+                    throw new IllegalArgumentException("--" + name + " requires a value.");
+                options.values.put(name, args.get(i));
+                i++;
+            } else if (contains(flagOptions, name)) {
+                options.values.put(name, "");
+            } else {
+                throw new IllegalArgumentException("unknown option --" + name + ".");
+            }
+        }
+        options.next = i;
+        return options;
+    }
+
+    private static boolean contains(String[] names, String name) {
+        if (names == null)
+            return false;
+        for (String n : names) {
+            if (n.equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return index of the first token after options.
+     */
+    int next() {
+        return next;
+    }
+
+    boolean has(String name) {
+        return values.containsKey(name);
+    }
+
+    String get(String name, String defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @throws NumberFormatException
+     *             if the value is not a number.
+     */
+    int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Get a duration such as "500ms", "3s" or "1m". A number without unit
+     * means milliseconds.
+     * 
+     * @return duration in milliseconds.
+     * @throws NumberFormatException
+     *             if the value is not a duration.
+     */
+    long getMillis(String name, long defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : parseMillis(value);
+    }
+
+    static long parseMillis(String value) {
+        value = value.trim().toLowerCase();
+        if (value.endsWith("ms"))
+            return Long.parseLong(value.substring(0, value.length() - 2));
+        if (value.endsWith("s"))
+            return Long.parseLong(value.substring(0, value.length() - 1)) * 1000;
+        if (value.endsWith("m"))
+            return Long.parseLong(value.substring(0, value.length() - 1)) * 60 * 1000;
+        return Long.parseLong(value);
+    }
+}
@@ -0,0 +1,99 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps command names and aliases to commands.
+ */
+final class CommandRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(CommandRegistry.class);
+
+    private final Map<String, ShellCommand> commands = new HashMap<String, ShellCommand>();
+    private final List<ShellCommand> extensions = new ArrayList<ShellCommand>();
+
+    /**
+     * Register a command.
+     * 
+     * @param command
+     *            a command.
+     * @throws IllegalArgumentException
+     *             if a name of the command is already registered.
+     */
+    void register(ShellCommand command) {
+        for (String name : command.getNames()) {
+            if (commands.containsKey(name))
+                throw new IllegalArgumentException("Command name is already registered. : " + name);
+        }
+        for (String name : command.getNames()) {
+            commands.put(name, command);
+        }
+    }
+
+    /**
+     * Register commands provided by jar files on the class path.
+     * A command whose name is already registered is ignored.
+     * 
+     * @param loader
+     *            class loader to find commands.
+     */
+    void loadExtensions(ClassLoader loader) {
+        try {
+            for (ShellCommand command : ServiceLoader.load(ShellCommand.class, loader)) {
+                try {
+                    register(command);
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Ignore an extension command. " + e.getMessage());
+                    continue;
+                }
+                extensions.add(command);
+                logger.info("Loaded an extension command : " + command.getNames()[0]
+                        + " (" + command.getClass().getName() + ")");
+            }
+        } catch (ServiceConfigurationError e) {
+            logger.error("Failed loading extension commands.", e);
+        }
+    }
+
+    /**
+     * Register commands already loaded by another registry. Commands are
+     * shared, not loaded again.
+     * 
+     * @param loaded
+     *            commands loaded by loadExtensions of another registry.
+     */
+    void addExtensions(List<ShellCommand> loaded) {
+        for (ShellCommand command : loaded) {
+            try {
+                register(command);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            extensions.add(command);
+        }
+    }
+
+    /**
+     * @param name
+     *            a command name or an alias.
+     * @return a command, or null if not found.
+     */
+    ShellCommand lookup(String name) {
+        return commands.get(name);
+    }
+
+    /**
+     * @return commands loaded by loadExtensions.
+     */
+    List<ShellCommand> getExtensions() {
+        return Collections.unmodifiableList(extensions);
+    }
+}
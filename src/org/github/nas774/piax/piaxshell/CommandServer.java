@@ -0,0 +1,427 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Command endpoint of a peer for clients on the local host.
+ *
+ * A client sends command lines terminated by '\n'. Each connection is a
+ * session which has its own ShellCommandProcessor, so agent numbers given by
+ * the agents command are per session. Commands of a session run one by one in
+ * the order received, on a few worker threads shared by all sessions. One
+ * selector thread does all socket I/O.
+ *
+ * Responses are framed as a header line and UTF-8 output of the length:
+ *
+ * <pre>
+ * OK &lt;length&gt;\n&lt;output&gt;      the command succeeded
+ * ERR &lt;length&gt;\n&lt;output&gt;     the command failed
+ * ASYNC &lt;length&gt;\n&lt;output&gt;   output of async calls, between responses
+ * </pre>
+ *
+ * Each command gets one OK or ERR response in order, so clients may send
+ * commands without waiting for responses. The connection is closed after the
+ * response of bye.
+ */
+final class CommandServer {
+    private static final Logger logger = LoggerFactory.getLogger(CommandServer.class);
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    /** Sessions not reading responses are closed beyond this. */
+    private static final long MAX_PENDING_OUTPUT = 16 * 1024 * 1024;
+
+    private final ShellCommandProcessor parent;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    // Sessions which have new output. Handled by the selector thread.
+    private final Queue<Session> outputReady = new ConcurrentLinkedQueue<Session>();
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    /**
+     * Bind the loopback address.
+     *
+     * @param parent
+     *            a processor of the peer. Sessions share its async executor
+     *            and latency stats.
+     * @param port
+     *            port to listen, or 0 for any free port.
+     * @param threads
+     *            number of threads which run commands.
+     * @throws IOException
+     *             if the port can not be bound.
+     */
+    CommandServer(ShellCommandProcessor parent, int port, int threads) throws IOException {
+        this.parent = parent;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        try {
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "CommandServer-worker-" + count.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        this.selectorThread = new Thread(new Runnable() {
+            public void run() {
+                selectLoop();
+            }
+        }, "CommandServer");
+        this.selectorThread.setDaemon(true);
+    }
+
+    void start() {
+        selectorThread.start();
+    }
+
+    /**
+     * @return the port listening.
+     */
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return number of open sessions.
+     */
+    int getSessions() {
+        return sessions.get();
+    }
+
+    /**
+     * Close the server and all sessions. Commands running are not waited.
+     */
+    void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Session session;
+                while ((session = outputReady.poll()) != null) {
+                    session.updateInterest();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    session = (Session) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            session.read();
+                        if (key.isValid() && key.isWritable())
+                            session.write();
+                    } catch (IOException e) {
+                        logger.debug("Session closed by I/O error. : " + e.getMessage());
+                        session.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        } catch (ClosedSelectorException e) {
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Session)
+                    ((Session) key.attachment()).close();
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        Session session = new Session(channel);
+        session.key = channel.register(selector, SelectionKey.OP_READ, session);
+        sessions.incrementAndGet();
+        logger.info("Command session opened. : " + channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * A connection and its shell.
+     */
+    private final class Session {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ShellCommandProcessor shell;
+        private final SessionOutput output = new SessionOutput();
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        private final Queue<String> requests = new ConcurrentLinkedQueue<String>();
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private final Runnable drain = new Runnable() {
+            public void run() {
+                drain();
+            }
+        };
+
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicLong pendingOutput = new AtomicLong();
+        private volatile boolean closeAfterWrite = false;
+        private volatile boolean closed = false;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+            PrintStream out;
+            try {
+                out = new PrintStream(output, true, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            this.shell = new ShellCommandProcessor(parent, out);
+        }
+
+        /**
+         * Read command lines and queue them. Called by the selector thread.
+         */
+        void read() throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                // Run commands received, then close.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                requests.offer("bye");
+                schedule();
+                return;
+            }
+            readBuffer.flip();
+            boolean received = false;
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    byte[] bytes = line.toByteArray();
+                    int len = bytes.length;
+                    if (0 < len && bytes[len - 1] == '\r')
+                        len--;
+                    requests.offer(new String(bytes, 0, len, "UTF-8"));
+                    line.reset();
+                    received = true;
+                } else {
+                    line.write(b);
+                    if (MAX_LINE_LENGTH < line.size()) {
+                        logger.warn("Too long command line. Close session.");
+                        close();
+                        return;
+                    }
+                }
+            }
+            if (received)
+                schedule();
+        }
+
+        private void schedule() {
+            if (busy.compareAndSet(false, true))
+                workers.execute(drain);
+        }
+
+        /**
+         * Run queued commands one by one. Called by a worker thread.
+         */
+        private void drain() {
+            while (true) {
+                String request = requests.poll();
+                if (request == null) {
+                    busy.set(false);
+                    // A request may be queued after poll and before set.
+                    if (requests.isEmpty() || !busy.compareAndSet(false, true))
+                        return;
+                    continue;
+                }
+                if (closed || closeAfterWrite)
+                    continue;
+                output.begin();
+                boolean cont;
+                try {
+                    cont = shell.processCommand(request);
+                } finally {
+                    output.flush();
+                }
+                byte[] bytes = output.end();
+                send(shell.isLastCommandFailed() ? "ERR" : "OK", bytes);
+                if (!cont) {
+                    closeAfterWrite = true;
+                    outputReady.offer(this);
+                    selector.wakeup();
+                }
+            }
+        }
+
+        /**
+         * Queue a framed response. Called by any thread.
+         */
+        void send(String type, byte[] bytes) {
+            if (closed)
+                return;
+            byte[] header;
+            try {
+                header = (type + " " + bytes.length + "\n").getBytes("US-ASCII");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(header.length + bytes.length);
+            buf.put(header).put(bytes).flip();
+            if (MAX_PENDING_OUTPUT < pendingOutput.addAndGet(buf.remaining())) {
+                logger.warn("Session does not read responses. Close session.");
+                closeAfterWrite = true;
+                responses.clear();
+            } else {
+                responses.offer(buf);
+            }
+            outputReady.offer(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Called by the selector thread.
+         */
+        void updateInterest() {
+            if (closed || !key.isValid())
+                return;
+            if (!responses.isEmpty()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else if (closeAfterWrite) {
+                close();
+            }
+        }
+
+        /**
+         * Write queued responses. Called by the selector thread.
+         */
+        void write() throws IOException {
+            ByteBuffer buf;
+            while ((buf = responses.peek()) != null) {
+                int n = channel.write(buf);
+                pendingOutput.addAndGet(-n);
+                if (buf.hasRemaining())
+                    return;
+                responses.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterWrite)
+                close();
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            requests.clear();
+            responses.clear();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug(e.getMessage());
+            }
+            sessions.decrementAndGet();
+            logger.info("Command session closed.");
+        }
+
+        /**
+         * Output of the shell. Bytes written by the thread running a command
+         * are the response of the command. Bytes written by other threads,
+         * such as returns of async calls, are sent as ASYNC on flush.
+         */
+        private final class SessionOutput extends OutputStream {
+            private final ByteArrayOutputStream command = new ByteArrayOutputStream();
+            private final ByteArrayOutputStream async = new ByteArrayOutputStream();
+            private Thread commandThread = null;
+
+            synchronized void begin() {
+                commandThread = Thread.currentThread();
+                command.reset();
+            }
+
+            synchronized byte[] end() {
+                commandThread = null;
+                return command.toByteArray();
+            }
+
+            private ByteArrayOutputStream buffer() {
+                return Thread.currentThread() == commandThread ? command : async;
+            }
+
+            @Override
+            public synchronized void write(int b) {
+                buffer().write(b);
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                buffer().write(b, off, len);
+            }
+
+            @Override
+            public synchronized void flush() {
+                if (async.size() == 0)
+                    return;
+                send("ASYNC", async.toByteArray());
+                async.reset();
+            }
+        }
+    }
+}
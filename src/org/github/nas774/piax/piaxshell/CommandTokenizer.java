@@ -0,0 +1,107 @@
+package org.github.nas774.piax.piaxshell;
+
+/**
+ * Single pass tokenizer of shell command lines.
+ * 
+ * A line consists of a command name ([a-zA-Z][\w-]*) and arguments separated
+ * by white spaces. An argument beginning with '"' lasts until the next
+ * unescaped '"' or the end of line, and \" in it means '"' itself.
+ * Backslashes are removed from arguments.
+ * 
+ * Not thread safe. Buffers and the returned CommandLine are reused.
+ */
+final class CommandTokenizer {
+    private final CommandLine line = new CommandLine();
+    private char[] buf = new char[256];
+
+    /**
+     * Tokenize a line.
+     * 
+     * @param input
+     *            a command line.
+     * @return tokens which is valid until the next call, or null if the line
+     *         doesn't begin with a valid command name.
+     */
+    CommandLine tokenize(String input) {
+        line.clear();
+
+        int begin = 0;
+        int end = input.length();
+        while (begin < end && input.charAt(begin) <= ' ')
+            begin++;
+        while (begin < end && input.charAt(end - 1) <= ' ')
+            end--;
+        if (begin == end)
+            return line;
+        if (buf.length < end - begin)
+            buf = new char[end - begin];
+
+        // command name
+        int p = begin;
+        if (!isLetter(input.charAt(p)))
+            return null;
+        p++;
+        while (p < end && isNameChar(input.charAt(p)))
+            p++;
+        if (p < end && !isSpace(input.charAt(p)))
+            return null;
+        line.add(input.substring(begin, p));
+
+        // arguments
+        while (true) {
+            while (p < end && !isSpace(input.charAt(p)))
+                p++;
+            while (p < end && isSpace(input.charAt(p)))
+                p++;
+            if (p == end)
+                break;
+
+            int n = 0;
+            if (input.charAt(p) == '"') {
+                p++;
+                while (p < end) {
+                    char c = input.charAt(p);
+                    if (c == '"') {
+                        p++;
+                        break;
+                    }
+                    if (c == '\\') {
+                        if (p + 1 < end && input.charAt(p + 1) == '"') {
+                            buf[n++] = '"';
+                            p += 2;
+                        } else {
+                            p++;
+                        }
+                        continue;
+                    }
+                    buf[n++] = c;
+                    p++;
+                }
+            } else {
+                while (p < end) {
+                    char c = input.charAt(p);
+                    if (isSpace(c))
+                        break;
+                    if (c != '\\')
+                        buf[n++] = c;
+                    p++;
+                }
+            }
+            line.add(new String(buf, 0, n));
+        }
+        return line;
+    }
+
+    private static boolean isLetter(char c) {
+        return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z');
+    }
+
+    private static boolean isNameChar(char c) {
+        return isLetter(c) || ('0' <= c && c <= '9') || c == '_' || c == '-';
+    }
+
+    // Same as \s of java.util.regex.
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,282 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Output stage of the console.
+ *
+ * Threads print records, each of which is text of one or more lines, to a
+ * bounded queue. A writer thread takes records in batches and writes each
+ * batch to the console at once, so records never interleave and threads do
+ * not wait for the console. When the queue is full, a record is handled by
+ * the policy.
+ */
+final class ConsoleOutput {
+    static final int DEFAULT_CAPACITY = 10000;
+
+    /** Max records the writer takes for a write. */
+    private static final int MAX_BATCH = 256;
+
+    enum Policy {
+        /** wait until the writer takes a record. */
+        BLOCK,
+        /** drop the record and count it. */
+        DROP;
+
+        /**
+         * @param name
+         *            block or drop.
+         * @return a policy.
+         * @throws IllegalArgumentException
+         *             if the name is unknown.
+         */
+        static Policy of(String name) {
+            if (name.equals("block"))
+                return BLOCK;
+            if (name.equals("drop"))
+                return DROP;
+            throw new IllegalArgumentException("unknown policy " + name + ".");
+        }
+    }
+
+    private final PrintStream target;
+    private final Policy policy;
+    private final Queue<String> queue = new ConcurrentLinkedQueue<String>();
+    // Free slots of the queue.
+    private final Semaphore slots;
+    private final PrintStream stream;
+    private final Thread writer;
+    private final AtomicBoolean idle = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * @param target
+     *            the console.
+     * @param capacity
+     *            max number of records waiting for the writer.
+     * @param policy
+     *            policy for a record when the queue is full.
+     */
+    ConsoleOutput(PrintStream target, int capacity, Policy policy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity should be 1 or more.");
+        this.target = target;
+        this.policy = policy;
+        this.slots = new Semaphore(capacity);
+        try {
+            this.stream = new PrintStream(new RecordStream(), true, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "ConsoleOutput");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a record.
+     *
+     * @param record
+     *            text to write as is, usually ending with a line separator.
+     * @return false if the record is dropped.
+     */
+    boolean print(String record) {
+        if (closed) {
+            // The writer has gone. Write it directly not to lose it.
+            target.print(record);
+            target.flush();
+            return true;
+        }
+        if (!slots.tryAcquire()) {
+            if (policy == Policy.DROP) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            slots.acquireUninterruptibly();
+        }
+        queue.offer(record);
+        queued.incrementAndGet();
+        if (closed) {
+            // Closed meanwhile, and close may have drained the queue before
+            // the offer. Nobody else writes it.
+            drain();
+            return true;
+        }
+        if (idle.get())
+            LockSupport.unpark(writer);
+        return true;
+    }
+
+    /**
+     * @return a stream which queues what is printed by a thread as a record
+     *         at each flush. It flushes at each line.
+     */
+    PrintStream getStream() {
+        return stream;
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder();
+        long reported = 0;
+        while (true) {
+            int n = 0;
+            String record;
+            while (n < MAX_BATCH && (record = queue.poll()) != null) {
+                batch.append(record);
+                n++;
+            }
+            long d = dropped.get();
+            if (reported < d) {
+                batch.append("\t>> output dropped: " + (d - reported) + " records.\n");
+                reported = d;
+            }
+            if (0 < batch.length()) {
+                target.print(batch);
+                target.flush();
+                batch.setLength(0);
+                slots.release(n);
+                written.addAndGet(n);
+                batches.incrementAndGet();
+                continue;
+            }
+            if (closed)
+                return;
+            // Check the queue again after telling printers to wake this up.
+            idle.set(true);
+            if (queue.isEmpty() && !closed)
+                LockSupport.park(this);
+            idle.set(false);
+        }
+    }
+
+    /**
+     * Wait until records queued so far are written.
+     *
+     * @param timeout
+     *            max msec to wait.
+     * @return true if written.
+     */
+    boolean flush(long timeout) {
+        long last = queued.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (written.get() < last) {
+            if (deadline - System.nanoTime() <= 0 || !writer.isAlive())
+                return false;
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    /**
+     * Write records queued and stop the writer. Records printed after this
+     * are written directly.
+     *
+     * @param timeout
+     *            max msec to wait for the writer.
+     */
+    void close(long timeout) {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Records queued while closing.
+        drain();
+    }
+
+    /**
+     * Write records left in the queue directly, after the writer has gone.
+     * Slots are released so printers waiting for them go on and write
+     * directly as well.
+     */
+    private void drain() {
+        int n = 0;
+        String record;
+        while ((record = queue.poll()) != null) {
+            target.print(record);
+            n++;
+        }
+        target.flush();
+        written.addAndGet(n);
+        // At least one, to wake a printer blocked on a full queue.
+        slots.release(Math.max(n, 1));
+    }
+
+    Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return number of records waiting for the writer.
+     */
+    long getPending() {
+        return queued.get() - written.get();
+    }
+
+    long getWritten() {
+        return written.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Bytes printed by each thread, queued as a record at flush.
+     */
+    private final class RecordStream extends OutputStream {
+        private final ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<ByteArrayOutputStream>() {
+            protected ByteArrayOutputStream initialValue() {
+                return new ByteArrayOutputStream();
+            }
+        };
+
+        public void write(int b) {
+            buffers.get().write(b);
+        }
+
+        public void write(byte[] b, int off, int len) {
+            buffers.get().write(b, off, len);
+        }
+
+        public void flush() {
+            ByteArrayOutputStream buffer = buffers.get();
+            if (buffer.size() == 0)
+                return;
+            String record;
+            try {
+                record = buffer.toString("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            buffer.reset();
+            print(record);
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.piax.agent.AgentId;
+import org.piax.trans.common.PeerId;
+
+/**
+ * Results of discovery calls of a peer, kept for a while and shared by
+ * identical calls.
+ *
+ * A discovery call is identified by its query, method and arguments. The
+ * first call of a key issues a discovery call, and its results are added to
+ * a stream as they arrive. Identical calls issued while the stream is open
+ * read the same stream instead of issuing another discovery call. When all
+ * results arrived, the stream is kept for the TTL. Streams closed by a
+ * timeout are not kept. Streams used least recently are evicted when the
+ * number of streams exceeds the max. A stream which receives more results
+ * than the max per stream is removed, and is read only by the readers it
+ * already has.
+ *
+ * A stream removed from the cache keeps only results its readers have not
+ * read, and its discovery call is cancelled when the last reader leaves, so
+ * nothing is buffered for no one.
+ */
+final class DiscoveryCache {
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+    static final int DEFAULT_MAX_RESULTS = 10000;
+
+    /**
+     * A result of a discovery call.
+     */
+    static final class Result {
+        final Object value;
+        /** true if the method threw an exception. */
+        final boolean failed;
+        final PeerId peerId;
+        final AgentId agentId;
+
+        Result(Object value, boolean failed, PeerId peerId, AgentId agentId) {
+            this.value = value;
+            this.failed = failed;
+            this.peerId = peerId;
+            this.agentId = agentId;
+        }
+    }
+
+    /**
+     * Results of a discovery call read one by one, like a ReturnSet.
+     */
+    interface Returns {
+        /**
+         * @return false if all results are read.
+         */
+        boolean hasNext();
+
+        /**
+         * @param timeout
+         *            msec to wait for a result.
+         * @return the next result.
+         * @throws InterruptedException
+         *             if no result arrives within the timeout.
+         * @throws NoSuchElementException
+         *             if no more results will arrive.
+         */
+        Result getNext(long timeout) throws InterruptedException;
+
+        /**
+         * Stop receiving results.
+         */
+        void cancel();
+    }
+
+    /**
+     * How a lookup found its stream.
+     */
+    enum Kind {
+        /** the stream has all results. */
+        HIT,
+        /** the stream is receiving results. */
+        COALESCED,
+        /** the stream is new. The caller should issue the discovery call. */
+        MISS
+    }
+
+    /**
+     * Results of a discovery call, in the order arrived.
+     *
+     * While the stream is in the cache, all results are kept. After it is
+     * removed, by oversize or eviction, only results not read by all its
+     * cursors are kept, and the discovery call is cancelled when the last
+     * cursor is cancelled.
+     */
+    final class Stream {
+        private final Object key;
+        // Results from index base.
+        private final List<Result> results = new ArrayList<Result>();
+        private int base = 0;
+        private int size = 0;
+        private final List<Cursor> cursors = new ArrayList<Cursor>();
+        private boolean cached = true;
+        private boolean abandoned = false;
+        private Runnable canceller = null;
+        private boolean closed = false;
+        // System.nanoTime() until which the stream is kept. Valid if closed.
+        private long expires = 0;
+
+        private Stream(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * Set how to cancel the discovery call when no one reads the stream.
+         * Runs now if it is already abandoned.
+         */
+        void setCanceller(Runnable canceller) {
+            synchronized (this) {
+                if (!abandoned) {
+                    this.canceller = canceller;
+                    return;
+                }
+            }
+            canceller.run();
+        }
+
+        /**
+         * Add a result. Called by the receiver of the discovery call.
+         */
+        void add(Result result) {
+            boolean oversized;
+            synchronized (this) {
+                if (abandoned)
+                    return;
+                results.add(result);
+                size++;
+                notifyAll();
+                oversized = cached && size == maxResults + 1;
+            }
+            if (oversized) {
+                // Too large to keep. Not to be found by later lookups.
+                remove(this);
+                oversizes.incrementAndGet();
+            }
+        }
+
+        /**
+         * @return number of results arrived so far.
+         */
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Close the stream. Called by the receiver of the discovery call.
+         *
+         * @param complete
+         *            true if all results arrived. Otherwise the stream is
+         *            not kept.
+         */
+        void close(boolean complete) {
+            synchronized (this) {
+                closed = true;
+                expires = System.nanoTime() + ttlNanos;
+                notifyAll();
+            }
+            if (!complete)
+                remove(this);
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private synchronized boolean isExpired(long now) {
+            return closed && expires - now <= 0;
+        }
+
+        /**
+         * @return a reader from the first result kept. Cancel it when done.
+         */
+        synchronized Cursor cursor() {
+            Cursor cursor = new Cursor(this, base);
+            cursors.add(cursor);
+            return cursor;
+        }
+
+        /**
+         * Called when the cache no longer has this stream.
+         */
+        private void uncache() {
+            synchronized (this) {
+                cached = false;
+                trim();
+            }
+            abandonIfUnread();
+        }
+
+        private void detach(Cursor cursor) {
+            synchronized (this) {
+                if (!cursors.remove(cursor))
+                    return;
+                trim();
+            }
+            abandonIfUnread();
+        }
+
+        /**
+         * Stop buffering and cancel the discovery call if the stream is not
+         * cached and has no cursor.
+         */
+        private void abandonIfUnread() {
+            Runnable cancel;
+            synchronized (this) {
+                if (cached || !cursors.isEmpty() || abandoned)
+                    return;
+                abandoned = true;
+                results.clear();
+                base = size;
+                cancel = closed ? null : canceller;
+                canceller = null;
+            }
+            if (cancel != null)
+                cancel.run();
+        }
+
+        /**
+         * Drop results read by all cursors, if not cached. Called with the
+         * lock held.
+         */
+        private void trim() {
+            if (cached)
+                return;
+            int min = size;
+            for (Cursor cursor : cursors)
+                min = Math.min(min, cursor.index);
+            int n = min - base;
+            // Drop in bulk, not to shift the list for each result.
+            if (0 < n && (results.size() <= 2 * n || 1024 <= n)) {
+                results.subList(0, n).clear();
+                base = min;
+            }
+        }
+
+        /**
+         * Wait for the result at the index.
+         *
+         * @return the result, or null if the stream is closed before it.
+         * @throws InterruptedException
+         *             if it does not arrive within the timeout.
+         */
+        private synchronized Result get(int index, long timeout) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (size <= index) {
+                if (closed)
+                    return null;
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    throw new InterruptedException("timeout");
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return results.get(index - base);
+        }
+    }
+
+    /**
+     * Reads results of a stream. Each reader has its own position.
+     */
+    static final class Cursor implements Returns {
+        private final Stream stream;
+        // Guarded by the stream.
+        private int index;
+        private boolean cancelled = false;
+
+        private Cursor(Stream stream, int index) {
+            this.stream = stream;
+            this.index = index;
+        }
+
+        /**
+         * @return the stream read.
+         */
+        Stream getStream() {
+            return stream;
+        }
+
+        public boolean hasNext() {
+            synchronized (stream) {
+                return !cancelled && (index < stream.size || !stream.closed);
+            }
+        }
+
+        public Result getNext(long timeout) throws InterruptedException {
+            synchronized (stream) {
+                if (cancelled)
+                    throw new NoSuchElementException();
+                Result result = stream.get(index, timeout);
+                if (result == null)
+                    throw new NoSuchElementException();
+                index++;
+                stream.trim();
+                return result;
+            }
+        }
+
+        /**
+         * Stop reading. The stream keeps receiving for the cache and other
+         * readers. If it has neither, the discovery call is cancelled.
+         */
+        public void cancel() {
+            synchronized (stream) {
+                if (cancelled)
+                    return;
+                cancelled = true;
+            }
+            stream.detach(this);
+        }
+    }
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final int maxResults;
+    // Streams in the order used, least recent first.
+    private final LinkedHashMap<Object, Stream> streams;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong oversizes = new AtomicLong();
+
+    /**
+     * @param ttl
+     *            msec to keep results after all results arrived.
+     * @param maxEntries
+     *            max number of streams kept.
+     * @param maxResults
+     *            max number of results of a stream kept.
+     */
+    DiscoveryCache(long ttl, int maxEntries, int maxResults) {
+        if (ttl < 1 || maxEntries < 1 || maxResults < 1)
+            throw new IllegalArgumentException("ttl, maxEntries and maxResults should be 1 or more.");
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.maxEntries = maxEntries;
+        this.maxResults = maxResults;
+        this.streams = new LinkedHashMap<Object, Stream>(16, 0.75f, true);
+    }
+
+    /**
+     * @return a key of a discovery call.
+     */
+    static Object key(String query, String method, Object[] args) {
+        return Arrays.asList(query, method, Arrays.asList(args));
+    }
+
+    /**
+     * Find the stream of a key, or create one, and attach a reader to it.
+     * The reader is attached before the stream can be evicted, so it reads
+     * from the first result.
+     *
+     * @param kind
+     *            receives how the stream is found, at index 0.
+     * @return a reader of the stream. Cancel it when done.
+     */
+    Cursor lookup(Object key, Kind[] kind) {
+        List<Stream> removed = new ArrayList<Stream>();
+        Cursor cursor;
+        synchronized (this) {
+            long now = System.nanoTime();
+            Stream stream = streams.get(key);
+            if (stream != null && stream.isExpired(now)) {
+                streams.remove(key);
+                removed.add(stream);
+                stream = null;
+            }
+            if (stream != null) {
+                if (stream.isClosed()) {
+                    kind[0] = Kind.HIT;
+                    hits.incrementAndGet();
+                } else {
+                    kind[0] = Kind.COALESCED;
+                    coalesced.incrementAndGet();
+                }
+            } else {
+                kind[0] = Kind.MISS;
+                misses.incrementAndGet();
+                stream = new Stream(key);
+                streams.put(key, stream);
+                evict(now, removed);
+            }
+            cursor = stream.cursor();
+        }
+        // Outside the lock, as it may cancel discovery calls.
+        for (Stream stream : removed)
+            stream.uncache();
+        return cursor;
+    }
+
+    /**
+     * Remove expired streams, then the least recently used ones over the max.
+     * Open streams removed keep receiving for their readers.
+     *
+     * @param removed
+     *            receives streams removed.
+     */
+    private void evict(long now, List<Stream> removed) {
+        Iterator<Stream> it = streams.values().iterator();
+        while (it.hasNext()) {
+            Stream stream = it.next();
+            if (stream.isExpired(now) || maxEntries < streams.size()) {
+                it.remove();
+                evictions.incrementAndGet();
+                removed.add(stream);
+            }
+        }
+    }
+
+    private void remove(Stream stream) {
+        synchronized (this) {
+            if (streams.get(stream.key) != stream)
+                return;
+            streams.remove(stream.key);
+        }
+        stream.uncache();
+    }
+
+    void clear() {
+        List<Stream> removed;
+        synchronized (this) {
+            removed = new ArrayList<Stream>(streams.values());
+            streams.clear();
+        }
+        for (Stream stream : removed)
+            stream.uncache();
+    }
+
+    synchronized int size() {
+        return streams.size();
+    }
+
+    long getTtl() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    int getMaxResults() {
+        return maxResults;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of streams removed because of too many results.
+     */
+    long getOversizes() {
+        return oversizes.get();
+    }
+}
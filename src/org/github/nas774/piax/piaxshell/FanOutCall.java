@@ -0,0 +1,217 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.piax.agent.AgentHome;
+import org.piax.trans.common.FutureReturn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls a method of many local agents by callAsync and aggregates the
+ * results.
+ *
+ * At most parallelism calls are in flight. The calling thread issues calls
+ * and checks pending returns without blocking on any single return.
+ */
+final class FanOutCall {
+    private static final Logger logger = LoggerFactory.getLogger(FanOutCall.class);
+
+    /** Sleep after a check which found no return. */
+    private static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * Result of a call to an agent.
+     */
+    static final class Result {
+        final AgentIndex.Entry agent;
+        long nanos = -1;
+        Object value;
+        /** null if succeeded. */
+        Throwable error;
+
+        // while in flight.
+        FutureReturn<Object> future;
+        long start;
+
+        Result(AgentIndex.Entry agent) {
+            this.agent = agent;
+        }
+    }
+
+    private final AgentHome home;
+    private final List<AgentIndex.Entry> agents;
+    private final String method;
+    private final Object[] args;
+
+    private final Result[] results;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private int succeeded = 0;
+    private int failed = 0;
+    private int timedOut = 0;
+    private long elapsed = 0;
+
+    FanOutCall(AgentHome home, List<AgentIndex.Entry> agents, String method, Object[] args) {
+        this.home = home;
+        this.agents = agents;
+        this.method = method;
+        this.args = args;
+        this.results = new Result[agents.size()];
+    }
+
+    /**
+     * Call all agents and wait for the returns.
+     *
+     * @param parallelism
+     *            max number of calls in flight.
+     * @param timeout
+     *            msec to wait for all returns, or 0 to wait forever. Calls
+     *            not returned by then are counted as timed out.
+     */
+    void run(int parallelism, long timeout) {
+        long stime = System.nanoTime();
+        long deadline = stime + TimeUnit.MILLISECONDS.toNanos(timeout);
+        List<Result> pending = new ArrayList<Result>(Math.min(parallelism, agents.size()));
+        int next = 0;
+
+        while (next < agents.size() || !pending.isEmpty()) {
+            while (pending.size() < parallelism && next < agents.size()) {
+                Result result = new Result(agents.get(next));
+                results[next] = result;
+                next++;
+                result.start = System.nanoTime();
+                try {
+                    result.future = home.callAsync(result.agent.id, method, args);
+                    pending.add(result);
+                } catch (Exception e) {
+                    fail(result, e);
+                }
+            }
+
+            boolean progress = false;
+            for (int i = pending.size() - 1; 0 <= i; i--) {
+                Result result = pending.get(i);
+                if (!result.future.isDone())
+                    continue;
+                result.nanos = System.nanoTime() - result.start;
+                try {
+                    result.value = result.future.get();
+                    latency.record(result.nanos);
+                    succeeded++;
+                } catch (InvocationTargetException e) {
+                    fail(result, e.getCause() != null ? e.getCause() : e);
+                } catch (RuntimeException e) {
+                    fail(result, e);
+                }
+                result.future = null;
+                // Order of pending calls does not matter.
+                pending.set(i, pending.get(pending.size() - 1));
+                pending.remove(pending.size() - 1);
+                progress = true;
+            }
+
+            if (0 < timeout && deadline - System.nanoTime() <= 0) {
+                for (Result result : pending) {
+                    result.future.cancel();
+                    result.future = null;
+                    result.error = new InterruptedException("timed out.");
+                    timedOut++;
+                    failed++;
+                }
+                for (int i = next; i < agents.size(); i++) {
+                    Result result = new Result(agents.get(i));
+                    result.error = new InterruptedException("not called.");
+                    results[i] = result;
+                    timedOut++;
+                    failed++;
+                }
+                break;
+            }
+            if (!progress && (pending.size() == parallelism || next == agents.size())) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        elapsed = System.nanoTime() - stime;
+    }
+
+    private void fail(Result result, Throwable e) {
+        result.error = e;
+        failed++;
+        if (failed == 1) {
+            // Avoid flooding the log by the same error.
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    int getSucceeded() {
+        return succeeded;
+    }
+
+    int getFailed() {
+        return failed;
+    }
+
+    int getTimedOut() {
+        return timedOut;
+    }
+
+    long getElapsedNanos() {
+        return elapsed;
+    }
+
+    LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return results of failed calls.
+     */
+    List<Result> getFailures() {
+        List<Result> failures = new ArrayList<Result>();
+        for (Result result : results) {
+            if (result != null && result.error != null)
+                failures.add(result);
+        }
+        return failures;
+    }
+
+    /**
+     * @return results of the n slowest returned calls, slowest first.
+     */
+    List<Result> getSlowest(int n) {
+        List<Result> returned = new ArrayList<Result>();
+        for (Result result : results) {
+            if (result != null && 0 <= result.nanos)
+                returned.add(result);
+        }
+        Collections.sort(returned, new Comparator<Result>() {
+            public int compare(Result a, Result b) {
+                return a.nanos < b.nanos ? 1 : a.nanos == b.nanos ? 0 : -1;
+            }
+        });
+        return returned.subList(0, Math.min(n, returned.size()));
+    }
+
+    /**
+     * @return distinct return values of succeeded calls and their counts.
+     */
+    Map<String, Integer> getValues() {
+        Map<String, Integer> values = new HashMap<String, Integer>();
+        for (Result result : results) {
+            if (result == null || result.error != null || result.nanos < 0)
+                continue;
+            String value = String.valueOf(result.value);
+            Integer count = values.get(value);
+            values.put(value, count == null ? 1 : count + 1);
+        }
+        return values;
+    }
+}
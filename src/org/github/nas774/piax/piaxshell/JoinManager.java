@@ -0,0 +1,267 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.piax.agent.AgentPeer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Joins a peer to the P2P net in background, retrying with exponential
+ * backoff and jitter.
+ *
+ * The n-th retry waits a random time between half and all of
+ * min(backoff * 2^(n-1), max backoff), so peers which failed at the same
+ * time do not retry at the same time. Hooks registered by
+ * {@link #onFinished(Runnable)} run once when the peer gets online or the
+ * join gives up, so work waiting for the join is not lost when it fails.
+ */
+final class JoinManager {
+    private static final Logger logger = LoggerFactory.getLogger(JoinManager.class);
+
+    static final long DEFAULT_BACKOFF = 500;
+    static final long DEFAULT_MAX_BACKOFF = 30000;
+    static final int DEFAULT_MAX_ATTEMPTS = 0; // unlimited.
+
+    enum State {
+        /** not joining. */
+        OFFLINE,
+        /** calling online. */
+        JOINING,
+        /** waiting for the next attempt. */
+        WAITING,
+        ONLINE,
+        /** gave up after max attempts. */
+        FAILED
+    }
+
+    private final AgentPeer peer;
+    private final long backoff;
+    private final long maxBackoff;
+    private final int maxAttempts;
+    private final Random random = new Random();
+
+    private State state = State.OFFLINE;
+    private Thread thread = null;
+    private int attempts = 0;
+    private long stime = 0;
+    // System.nanoTime() when online, or of the next attempt while waiting.
+    private long etime = 0;
+    private long lastAttemptNanos = 0;
+    private String lastError = null;
+    private final List<Runnable> hooks = new ArrayList<Runnable>();
+
+    /**
+     * @param peer
+     *            the peer to join.
+     * @param backoff
+     *            msec to wait before the first retry.
+     * @param maxBackoff
+     *            max msec to wait before a retry.
+     * @param maxAttempts
+     *            max number of attempts, or 0 for unlimited.
+     */
+    JoinManager(AgentPeer peer, long backoff, long maxBackoff, int maxAttempts) {
+        if (backoff < 1 || maxBackoff < backoff || maxAttempts < 0)
+            throw new IllegalArgumentException("bad backoff or maxAttempts.");
+        this.peer = peer;
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Start joining in background.
+     *
+     * @return false if already joining or online.
+     */
+    boolean start() {
+        synchronized (this) {
+            if (state == State.JOINING || state == State.WAITING)
+                return false;
+            if (!peer.isOnline()) {
+                state = State.JOINING;
+                attempts = 0;
+                lastError = null;
+                stime = System.nanoTime();
+                thread = new Thread(new Runnable() {
+                    public void run() {
+                        joinLoop();
+                    }
+                }, "JoinManager-" + peer.getPeerName());
+                thread.setDaemon(true);
+                thread.start();
+                return true;
+            }
+        }
+        // Hooks run out of the lock.
+        finish(State.ONLINE);
+        return false;
+    }
+
+    /**
+     * Stop retrying. An attempt in progress is not interrupted.
+     */
+    synchronized void cancel() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        if (state == State.JOINING || state == State.WAITING)
+            state = State.OFFLINE;
+    }
+
+    /**
+     * Run a hook once when the peer gets online or the join gives up, or now
+     * if it is online or gave up.
+     */
+    void onFinished(Runnable hook) {
+        synchronized (this) {
+            if (state != State.ONLINE && state != State.FAILED) {
+                hooks.add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+
+    private void joinLoop() {
+        Thread me = Thread.currentThread();
+        while (true) {
+            synchronized (this) {
+                if (thread != me)
+                    return;
+                state = State.JOINING;
+                attempts++;
+            }
+            long start = System.nanoTime();
+            String error = null;
+            try {
+                peer.online();
+            } catch (Exception e) {
+                error = e.toString();
+                logger.debug(e.getMessage(), e);
+            }
+            long delay = 0;
+            State done = null;
+            synchronized (this) {
+                lastAttemptNanos = System.nanoTime() - start;
+                if (thread != me)
+                    return;
+                if (error == null) {
+                    logger.info("Joined. peer:" + peer.getPeerName()
+                            + " attempts:" + attempts
+                            + " time(msec):" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stime));
+                    thread = null;
+                    done = State.ONLINE;
+                } else if (0 < maxAttempts && maxAttempts <= attempts) {
+                    logger.error("*** Join failed. peer:" + peer.getPeerName()
+                            + " attempts:" + attempts + " error:" + error);
+                    lastError = error;
+                    thread = null;
+                    done = State.FAILED;
+                } else {
+                    lastError = error;
+                    delay = nextBackoff(attempts);
+                    logger.warn("Join failed. Retry. peer:" + peer.getPeerName()
+                            + " attempts:" + attempts + " retry in(msec):" + delay + " error:" + error);
+                    state = State.WAITING;
+                    etime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                }
+            }
+            if (done != null) {
+                // Hooks run out of the lock.
+                finish(done);
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return msec to wait after the attempt.
+     */
+    private long nextBackoff(int attempt) {
+        long ceiling = backoff;
+        for (int i = 1; i < attempt && ceiling < maxBackoff; i++)
+            ceiling *= 2;
+        ceiling = Math.min(ceiling, maxBackoff);
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    /**
+     * Mark online or failed and run hooks. Must be called out of the lock.
+     */
+    private void finish(State done) {
+        List<Runnable> ready;
+        synchronized (this) {
+            if (state == done)
+                return;
+            state = done;
+            if (done == State.ONLINE)
+                etime = System.nanoTime();
+            ready = new ArrayList<Runnable>(hooks);
+            hooks.clear();
+        }
+        for (Runnable hook : ready) {
+            try {
+                hook.run();
+            } catch (RuntimeException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Called when the peer left.
+     */
+    synchronized void offline() {
+        cancel();
+        state = State.OFFLINE;
+    }
+
+    synchronized State getState() {
+        if (state == State.ONLINE && !peer.isOnline())
+            state = State.OFFLINE;
+        return state;
+    }
+
+    synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return time of the last attempt in nanosec.
+     */
+    synchronized long getLastAttemptNanos() {
+        return lastAttemptNanos;
+    }
+
+    synchronized String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return time until online, or so far if joining, in nanosec.
+     */
+    synchronized long getElapsedNanos() {
+        if (stime == 0)
+            return 0;
+        return (state == State.ONLINE ? etime : System.nanoTime()) - stime;
+    }
+
+    /**
+     * @return nanosec until the next attempt, or 0 if not waiting.
+     */
+    synchronized long getRetryInNanos() {
+        return state == State.WAITING ? Math.max(0, etime - System.nanoTime()) : 0;
+    }
+}
@@ -0,0 +1,164 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with fixed memory.
+ * 
+ * Values below 64ns are counted exactly. Larger values are counted in
+ * 32 buckets per power of two, so a reported value is within about 3% of
+ * the recorded one. Values over about 18 minutes are counted as the max
+ * bucket. Thread safe.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT >> 1;
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * HALF_COUNT + SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Record a latency.
+     * 
+     * @param nanos
+     *            latency in nanoseconds. Negative value is counted as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(indexOf(Math.min(nanos, MAX_VALUE)));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long cur;
+        while (nanos < (cur = min.get())) {
+            if (min.compareAndSet(cur, nanos))
+                break;
+        }
+        while (nanos > (cur = max.get())) {
+            if (max.compareAndSet(cur, nanos))
+                break;
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return minimum latency in nanoseconds, or 0 if empty.
+     */
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+
+    /**
+     * @return maximum latency in nanoseconds, or 0 if empty.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return mean latency in nanoseconds, or 0 if empty.
+     */
+    public long getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : sum.get() / c;
+    }
+
+    /**
+     * @param percentile
+     *            0 to 100.
+     * @return latency in nanoseconds at the percentile, or 0 if empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                // Middle of the bucket, but never over recorded max.
+                long value = lowerBoundOf(i) + (bucketWidthOf(i) >> 1);
+                return Math.max(Math.min(value, getMax()), getMin());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Add all values of other histogram into this.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        long cur;
+        long v = other.min.get();
+        while (v < (cur = min.get())) {
+            if (min.compareAndSet(cur, v))
+                break;
+        }
+        v = other.max.get();
+        while (v > (cur = max.get())) {
+            if (max.compareAndSet(cur, v))
+                break;
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS + 1;
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    private static long lowerBoundOf(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int shift = index / HALF_COUNT - 1;
+        return (long) (index - shift * HALF_COUNT) << shift;
+    }
+
+    private static long bucketWidthOf(int index) {
+        if (index < SUB_COUNT)
+            return 1;
+        return 1L << (index / HALF_COUNT - 1);
+    }
+
+    /**
+     * Format nanoseconds as milliseconds.
+     */
+    public static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,59 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latency histograms keyed by command name or "command:method".
+ * 
+ * The number of histograms is bounded. Latencies of names beyond the bound
+ * are counted as OTHERS. Thread safe.
+ */
+final class LatencyStats {
+    static final String OTHERS = "<others>";
+    private static final int MAX_NAMES = 256;
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Record a latency of a command.
+     */
+    void record(String command, long nanos) {
+        histogram(command).record(nanos);
+    }
+
+    /**
+     * Record a latency of a method called by a command.
+     */
+    void record(String command, String method, long nanos) {
+        histogram(command + ":" + method).record(nanos);
+    }
+
+    /**
+     * @return a histogram for the name. Created if absent.
+     */
+    LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram != null)
+            return histogram;
+        if (MAX_NAMES <= histograms.size())
+            name = OTHERS;
+        histogram = new LatencyHistogram();
+        LatencyHistogram prev = histograms.putIfAbsent(name, histogram);
+        return prev == null ? histogram : prev;
+    }
+
+    /**
+     * @return histograms sorted by name. Histograms are not copied.
+     */
+    SortedMap<String, LatencyHistogram> snapshot() {
+        return new TreeMap<String, LatencyHistogram>(histograms);
+    }
+
+    void reset() {
+        histograms.clear();
+    }
+}
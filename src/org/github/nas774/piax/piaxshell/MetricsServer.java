@@ -0,0 +1,204 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.piax.agent.AgentPeer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP endpoint on the loopback address which serves metrics of the peer as
+ * plain text, one "name value" or "name{labels} value" per line.
+ *
+ * GET /metrics returns agent counts and activation, online state, call and
+ * discovery latencies recorded by the shell, async returns in flight,
+ * discovery cache counts and JVM heap and threads. Agent counts are read
+ * from the agent index of each peer, so a scrape does not enumerate agents.
+ */
+final class MetricsServer {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private final ShellCommandProcessor shell;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Bind the loopback address.
+     *
+     * @param shell
+     *            a processor of the peer. Its latency stats and async
+     *            executor are exported.
+     * @param port
+     *            port to listen, or 0 for any free port.
+     * @throws IOException
+     *             if the port can not be bound.
+     */
+    MetricsServer(ShellCommandProcessor shell, int port) throws IOException {
+        this.shell = shell;
+        this.server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "MetricsServer");
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleMetrics(exchange);
+            }
+        });
+    }
+
+    void start() {
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body;
+            try {
+                body = collect().getBytes("UTF-8");
+            } catch (RuntimeException e) {
+                logger.warn(e.getMessage(), e);
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(body);
+            os.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return metrics text.
+     */
+    String collect() {
+        StringBuilder sb = new StringBuilder(4096);
+
+        // Totals of all peers of the process.
+        int online = 0;
+        int agents = 0;
+        int sleeping = 0;
+        boolean ready = true;
+        int activated = 0;
+        int activationFailed = 0;
+        long activationNanos = 0;
+        long cacheHits = 0;
+        long cacheCoalesced = 0;
+        long cacheMisses = 0;
+        long cacheOversizes = 0;
+        for (ShellPeer p : shell.getPeers()) {
+            DiscoveryCache cache = p.discoveryCache;
+            if (cache != null) {
+                cacheHits += cache.getHits();
+                cacheCoalesced += cache.getCoalesced();
+                cacheMisses += cache.getMisses();
+                cacheOversizes += cache.getOversizes();
+            }
+            AgentPeer peer = p.peer;
+            if (peer.isOnline())
+                online++;
+            agents += p.agents.size();
+            sleeping += p.agents.sleepingCount();
+            ActivationScheduler activation = p.activation;
+            if (activation == null) {
+                ready = false;
+                continue;
+            }
+            ready &= activation.isReady();
+            activated += activation.getActivated();
+            activationFailed += activation.getFailed();
+            activationNanos = Math.max(activationNanos, activation.getElapsedNanos());
+        }
+        metric(sb, "piax_peers", shell.getPeers().size());
+        metric(sb, "piax_peer_online", online);
+        metric(sb, "piax_agents", agents);
+        metric(sb, "piax_agents_sleeping", sleeping);
+        metric(sb, "piax_agents_ready", ready ? 1 : 0);
+        metric(sb, "piax_agents_activated", activated);
+        metric(sb, "piax_agents_activation_failed", activationFailed);
+        metric(sb, "piax_agents_activation_msec", LatencyHistogram.toMillis(activationNanos));
+
+        AsyncReturnExecutor async = shell.getAsyncReturnExecutor();
+        metric(sb, "piax_shell_async_in_flight", async.getInFlight());
+        metric(sb, "piax_shell_async_in_flight_peak", async.getPeakInFlight());
+        metric(sb, "piax_shell_async_queued", async.getQueued());
+        metric(sb, "piax_shell_async_completed_total", async.getCompleted());
+        metric(sb, "piax_shell_async_rejected_total", async.getRejected());
+        metric(sb, "piax_shell_async_caller_runs_total", async.getCallerRuns());
+        metric(sb, "piax_shell_async_expired_total", async.getExpired());
+        metric(sb, "piax_shell_discovery_cache_hits_total", cacheHits);
+        metric(sb, "piax_shell_discovery_cache_coalesced_total", cacheCoalesced);
+        metric(sb, "piax_shell_discovery_cache_misses_total", cacheMisses);
+        metric(sb, "piax_shell_discovery_cache_oversized_total", cacheOversizes);
+
+        // Names are command or command:method, e.g. call:echo, discover:echo.
+        for (Map.Entry<String, LatencyHistogram> e : shell.getStats().snapshot().entrySet()) {
+            LatencyHistogram h = e.getValue();
+            long count = h.getCount();
+            if (count == 0)
+                continue;
+            String label = "name=\"" + escape(e.getKey()) + "\"";
+            metric(sb, "piax_shell_latency_count{" + label + "}", count);
+            metric(sb, "piax_shell_latency_msec_mean{" + label + "}",
+                    LatencyHistogram.toMillis(h.getMean()));
+            metric(sb, "piax_shell_latency_msec_max{" + label + "}",
+                    LatencyHistogram.toMillis(h.getMax()));
+            for (double q : QUANTILES) {
+                metric(sb, "piax_shell_latency_msec{" + label + ",quantile=\"" + q + "\"}",
+                        LatencyHistogram.toMillis(h.getValueAtPercentile(q * 100)));
+            }
+        }
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        metric(sb, "jvm_heap_used_bytes", heap.getUsed());
+        metric(sb, "jvm_heap_committed_bytes", heap.getCommitted());
+        metric(sb, "jvm_heap_max_bytes", heap.getMax());
+        metric(sb, "jvm_threads", ManagementFactory.getThreadMXBean().getThreadCount());
+        metric(sb, "jvm_threads_peak", ManagementFactory.getThreadMXBean().getPeakThreadCount());
+        return sb.toString();
+    }
+
+    private static void metric(StringBuilder sb, String name, Object value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -4,19 +4,35 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.piax.agent.AgentAbilityException;
 import org.piax.agent.AgentHome;
 import org.piax.agent.AgentId;
 import org.piax.agent.AgentPeer;
 import org.piax.agent.NoSuchAgentException;
 import org.piax.trans.common.PeerLocator;
 import org.piax.trans.msgframe.MagicNumberConflictException;
+import org.piax.trans.ts.emu.EmuLocator;
 import org.piax.trans.ts.tcp.TcpLocator;
 import org.piax.trans.util.LocalInetAddrs;
 import org.piax.trans.util.MersenneTwister;
@@ -30,24 +46,103 @@ public class PIAXShell {
     private static final String PROPERTY_FILE = "piaxshell.properties";
 
     private static final int DEFAULT_PIAX_PORT = 12367;
+    private static final int DEFAULT_PEER_COUNT = 1;
+    private static final String DEFAULT_PEER_TRANSPORT = "tcp";
+    private static final int DEFAULT_SEED_PROBE_TIMEOUT = 1000; // msec to connect a seed.
     private static final String DEFAULT_PEERNAME_PREFIX = "PEER";
     private static final String DEFAULT_AGENT_DIRECTORY = "."; // Default AgentClassFile directory.
     private static final boolean DEFAULT_PEER_AUTOJOIN = false;
+    private static final long DEFAULT_JOIN_BACKOFF = JoinManager.DEFAULT_BACKOFF;
+    private static final long DEFAULT_JOIN_BACKOFF_MAX = JoinManager.DEFAULT_MAX_BACKOFF;
+    private static final int DEFAULT_JOIN_ATTEMPTS = JoinManager.DEFAULT_MAX_ATTEMPTS;
+    private static final boolean DEFAULT_ACTIVATION_AFTERJOIN = true;
     private static final boolean DEFAULT_USE_INTERACTIVESHELL = true;
+    private static final int DEFAULT_AGENT_BOOTSTRAP_THREADS = 1; // Create agents one by one.
+    private static final boolean DEFAULT_AGENTPROPS_WATCH = false;
+    private static final long DEFAULT_AGENTPROPS_WATCH_DEBOUNCE = 500; // msec without changes.
+    private static final int DEFAULT_ASYNC_THREADS = AsyncReturnExecutor.DEFAULT_THREADS;
+    private static final int DEFAULT_ASYNC_MAXINFLIGHT = AsyncReturnExecutor.DEFAULT_MAX_IN_FLIGHT;
+    private static final AsyncReturnExecutor.Policy DEFAULT_ASYNC_POLICY = AsyncReturnExecutor.Policy.BLOCK;
+    private static final long DEFAULT_ASYNC_TIMEOUT = AsyncReturnExecutor.DEFAULT_TIMEOUT; // msec to wait for async returns.
+    private static final int DEFAULT_OUTPUT_QUEUE = ConsoleOutput.DEFAULT_CAPACITY;
+    private static final ConsoleOutput.Policy DEFAULT_OUTPUT_POLICY = ConsoleOutput.Policy.BLOCK;
+    private static final long OUTPUT_CLOSE_TIMEOUT = 3000; // msec to write output left.
+    private static final long DEFAULT_DISCOVERY_CACHE_TTL = 0; // Discovery results are not cached.
+    private static final int DEFAULT_DISCOVERY_CACHE_SIZE = DiscoveryCache.DEFAULT_MAX_ENTRIES;
+    private static final int DEFAULT_DISCOVERY_CACHE_RESULTS = DiscoveryCache.DEFAULT_MAX_RESULTS;
+    private static final int DEFAULT_SERVER_PORT = 0; // Command server is disabled.
+    private static final int DEFAULT_SERVER_THREADS = 4;
+    private static final int DEFAULT_METRICS_PORT = 0; // Metrics server is disabled.
+    private static final int DEFAULT_ACTIVATION_THREADS = 8;
+    private static final int DEFAULT_SHUTDOWN_THREADS = 8;
+    private static final long DEFAULT_SHUTDOWN_DEADLINE = 10000; // msec to wait for agents disposed.
 
-    private AgentPeer peer = null;
+    // Peers of this process. The first one is the seed if seeds are not specified.
+    private final List<ShellPeer> peers = new ArrayList<ShellPeer>();
 
     protected String peerName = "";
-    private PeerLocator myLocator = null;
+    private int peer_count = DEFAULT_PEER_COUNT;
+    private List<PeerLocator> myLocators = null;
     private Collection<PeerLocator> seeds = null;
+    // Seeds given, or null to run as a seed peer.
+    private List<InetSocketAddress> seedAddresses = null;
+    private int seed_probe_timeout = DEFAULT_SEED_PROBE_TIMEOUT;
     private File[] agclassesdirs = null;
 
     private boolean autojoin = DEFAULT_PEER_AUTOJOIN;
+    private long join_backoff = DEFAULT_JOIN_BACKOFF;
+    private long join_backoff_max = DEFAULT_JOIN_BACKOFF_MAX;
+    private int join_attempts = DEFAULT_JOIN_ATTEMPTS;
 
     private boolean use_interactiveshell = DEFAULT_USE_INTERACTIVESHELL;
 
     private File agprop = null;
 
+    private File script = null;
+
+    private int bootstrap_threads = DEFAULT_AGENT_BOOTSTRAP_THREADS;
+
+    private boolean agentprops_watch = DEFAULT_AGENTPROPS_WATCH;
+    private long agentprops_watch_debounce = DEFAULT_AGENTPROPS_WATCH_DEBOUNCE;
+    private AgentPropertyWatcher propWatcher = null;
+
+    // Snapshot files of agents, or null if not used.
+    private File checkpoint = null;
+    private File restore = null;
+
+    private int async_threads = DEFAULT_ASYNC_THREADS;
+    private int async_maxinflight = DEFAULT_ASYNC_MAXINFLIGHT;
+    private AsyncReturnExecutor.Policy async_policy = DEFAULT_ASYNC_POLICY;
+    private long async_timeout = DEFAULT_ASYNC_TIMEOUT;
+
+    private int output_queue = DEFAULT_OUTPUT_QUEUE;
+    private ConsoleOutput.Policy output_policy = DEFAULT_OUTPUT_POLICY;
+    private ConsoleOutput console = null;
+    private AsyncReturnExecutor asyncReturnExecutor = null;
+
+    private long discovery_cache_ttl = DEFAULT_DISCOVERY_CACHE_TTL;
+    private int discovery_cache_size = DEFAULT_DISCOVERY_CACHE_SIZE;
+    private int discovery_cache_results = DEFAULT_DISCOVERY_CACHE_RESULTS;
+
+    private int server_port = DEFAULT_SERVER_PORT;
+    private int server_threads = DEFAULT_SERVER_THREADS;
+
+    private int metrics_port = DEFAULT_METRICS_PORT;
+
+    private int activation_threads = DEFAULT_ACTIVATION_THREADS;
+    // Activate agents when the peer joined, if auto join.
+    private boolean activation_afterjoin = DEFAULT_ACTIVATION_AFTERJOIN;
+    // Priorities given by agent property files.
+    private final Map<AgentId, Integer> agentPriorities = new ConcurrentHashMap<AgentId, Integer>();
+
+    private int shutdown_threads = DEFAULT_SHUTDOWN_THREADS;
+    private long shutdown_deadline = DEFAULT_SHUTDOWN_DEADLINE;
+
+    private CommandServer server = null;
+    private MetricsServer metrics = null;
+    // Terminate phase runs once, by the main thread or the shutdown hook.
+    private final AtomicBoolean terminated = new AtomicBoolean(false);
+
     public static void main(String[] args) {
         PIAXShell shell = new PIAXShell();
 
@@ -66,12 +161,17 @@ public class PIAXShell {
                         + "             if add '-' after 'I', disables interactive shell.\n"
                         + "  -e <addr> sets piax address to <addr>\n"
                         + "  -r <port> sets piax port to <spec>\n"
-                        + "  -s <seed> sets seed peer address to <seed>\n"
-                        + "             <seed> to be host:port form\n"
+                        + "  -n <count> runs <count> peers in this process\n"
+                        + "             peers after the first have name-NO and port+NO\n"
+                        + "  -s <seeds> sets seed peer addresses to <seeds>\n"
+                        + "             <seeds> to be host:port form, separated by ','\n"
                         + "  -p <property file> use <property file> instead of default property file\n"
                         + "             if add '-' after 'p', ignores default property file.\n"
                         + "  -a <agent dir> set agent class file directory to <agent dir>\n"
                         + "  -A <agent property> use agent property file or directory instead of default property to <agent property>\n"
+                        + "  -w means watch agent property directory and reload changed agents.\n"
+                        + "             if add '-' after 'w', disables watching.\n"
+                        + "  -f <script> runs commands in <script> instead of interactive shell, and exits\n"
                         + "  ex. piaxshell -r 1000 root\n"
                         + "  ex. piaxshell -r 1000 -s 192.168.1.101:2000 foo\n");
     }
@@ -91,10 +191,38 @@ public class PIAXShell {
             String tmp_piaxaddress = "";
             String tmp_piaxport = "";
             String tmp_seed = "";
+            String tmp_peer_count_str = "";
+            String tmp_peer_transport_str = "";
+            String tmp_seed_probe_timeout_str = "";
             boolean tmp_autojoin = false;
+            String tmp_join_backoff_str = "";
+            String tmp_join_backoff_max_str = "";
+            String tmp_join_attempts_str = "";
+            boolean tmp_activation_afterjoin = DEFAULT_ACTIVATION_AFTERJOIN;
             boolean tmp_use_interactiveshell = true;
             String tmp_agtdir = "";
             String tmp_agentprops_str = "";
+            String tmp_bootstrap_threads_str = "";
+            boolean tmp_agentprops_watch = DEFAULT_AGENTPROPS_WATCH;
+            String tmp_agentprops_watch_debounce_str = "";
+            String tmp_checkpoint_str = "";
+            String tmp_restore_str = "";
+            String tmp_script_str = "";
+            String tmp_async_threads_str = "";
+            String tmp_async_maxinflight_str = "";
+            String tmp_async_policy_str = "";
+            String tmp_async_timeout_str = "";
+            String tmp_output_queue_str = "";
+            String tmp_output_policy_str = "";
+            String tmp_discovery_cache_ttl_str = "";
+            String tmp_discovery_cache_size_str = "";
+            String tmp_discovery_cache_results_str = "";
+            String tmp_server_port_str = "";
+            String tmp_server_threads_str = "";
+            String tmp_metrics_port_str = "";
+            String tmp_activation_threads_str = "";
+            String tmp_shutdown_threads_str = "";
+            String tmp_shutdown_deadline_str = "";
 
             // Search 'p' option first.
             // If 'p' option is found, read property from given file.
@@ -150,6 +278,19 @@ public class PIAXShell {
                             tmp_seed = serverprop.getProperty("piax.peer.seed");
                         }
                         // may
+                        if (serverprop.containsKey("piax.peer.seed.probe.timeout")) {
+                            tmp_seed_probe_timeout_str = serverprop
+                                    .getProperty("piax.peer.seed.probe.timeout").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.peer.count")) {
+                            tmp_peer_count_str = serverprop.getProperty("piax.peer.count").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.peer.transport")) {
+                            tmp_peer_transport_str = serverprop.getProperty("piax.peer.transport").trim();
+                        }
+                        // may
                         if (serverprop.containsKey("piax.peer.autojoin")) {
                             String tmp_autojoin_str = serverprop
                                     .getProperty("piax.peer.autojoin");
@@ -159,6 +300,21 @@ public class PIAXShell {
                                 tmp_autojoin = true;
                         }
                         // may
+                        if (serverprop.containsKey("piax.peer.join.backoff")) {
+                            tmp_join_backoff_str = serverprop
+                                    .getProperty("piax.peer.join.backoff").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.peer.join.backoff.max")) {
+                            tmp_join_backoff_max_str = serverprop
+                                    .getProperty("piax.peer.join.backoff.max").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.peer.join.attempts")) {
+                            tmp_join_attempts_str = serverprop
+                                    .getProperty("piax.peer.join.attempts").trim();
+                        }
+                        // may
                         if (serverprop.containsKey("piax.shell.useinteractive")) {
                             String tmp_use_interactiveshell_str = serverprop
                                     .getProperty("piax.shell.useinteractive");
@@ -178,6 +334,117 @@ public class PIAXShell {
                             tmp_agentprops_str = serverprop
                                     .getProperty("piax.agentprops");
                         }
+                        // may
+                        if (serverprop.containsKey("piax.agent.bootstrap.threads")) {
+                            tmp_bootstrap_threads_str = serverprop
+                                    .getProperty("piax.agent.bootstrap.threads").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.agentprops.watch")) {
+                            String tmp_agentprops_watch_str = serverprop
+                                    .getProperty("piax.agentprops.watch");
+                            if (tmp_agentprops_watch_str != null
+                                    && !tmp_agentprops_watch_str.equals("")
+                                    && !tmp_agentprops_watch_str.equals("0"))
+                                tmp_agentprops_watch = true;
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.agentprops.watch.debounce")) {
+                            tmp_agentprops_watch_debounce_str = serverprop
+                                    .getProperty("piax.agentprops.watch.debounce").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.agent.checkpoint")) {
+                            tmp_checkpoint_str = serverprop
+                                    .getProperty("piax.agent.checkpoint").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.agent.restore")) {
+                            tmp_restore_str = serverprop
+                                    .getProperty("piax.agent.restore").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.async.threads")) {
+                            tmp_async_threads_str = serverprop
+                                    .getProperty("piax.shell.async.threads").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.async.maxinflight")) {
+                            tmp_async_maxinflight_str = serverprop
+                                    .getProperty("piax.shell.async.maxinflight").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.async.policy")) {
+                            tmp_async_policy_str = serverprop
+                                    .getProperty("piax.shell.async.policy").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.async.timeout")) {
+                            tmp_async_timeout_str = serverprop
+                                    .getProperty("piax.shell.async.timeout").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.output.queue")) {
+                            tmp_output_queue_str = serverprop
+                                    .getProperty("piax.shell.output.queue").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.output.policy")) {
+                            tmp_output_policy_str = serverprop
+                                    .getProperty("piax.shell.output.policy").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.discovery.cache.ttl")) {
+                            tmp_discovery_cache_ttl_str = serverprop
+                                    .getProperty("piax.shell.discovery.cache.ttl").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.discovery.cache.size")) {
+                            tmp_discovery_cache_size_str = serverprop
+                                    .getProperty("piax.shell.discovery.cache.size").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.discovery.cache.results")) {
+                            tmp_discovery_cache_results_str = serverprop
+                                    .getProperty("piax.shell.discovery.cache.results").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.server.port")) {
+                            tmp_server_port_str = serverprop
+                                    .getProperty("piax.shell.server.port").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.server.threads")) {
+                            tmp_server_threads_str = serverprop
+                                    .getProperty("piax.shell.server.threads").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.metrics.port")) {
+                            tmp_metrics_port_str = serverprop
+                                    .getProperty("piax.shell.metrics.port").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.agent.activation.threads")) {
+                            tmp_activation_threads_str = serverprop
+                                    .getProperty("piax.agent.activation.threads").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.agent.activation.afterjoin")) {
+                            String tmp_activation_afterjoin_str = serverprop
+                                    .getProperty("piax.agent.activation.afterjoin").trim();
+                            tmp_activation_afterjoin = !tmp_activation_afterjoin_str.equals("")
+                                    && !tmp_activation_afterjoin_str.equals("0");
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.shutdown.threads")) {
+                            tmp_shutdown_threads_str = serverprop
+                                    .getProperty("piax.shell.shutdown.threads").trim();
+                        }
+                        // may
+                        if (serverprop.containsKey("piax.shell.shutdown.deadline")) {
+                            tmp_shutdown_deadline_str = serverprop
+                                    .getProperty("piax.shell.shutdown.deadline").trim();
+                        }
                     } catch (FileNotFoundException e) {
                         logger.warn("Property file not found. : " + propfile);
                     } catch (IOException e) {
@@ -206,6 +473,14 @@ public class PIAXShell {
                             tmp_piaxport = args[i];
                         }
                         break;
+                    case 'n':
+                        i++;
+                        if (i < args.length) {
+                            tmp_peer_count_str = args[i];
+                        } else {
+                            logger.error("-n option requires a number of peers.");
+                        }
+                        break;
                     case 'j': {
                         tmp_autojoin = true;
                         String tmp_autojoin_str = arg.substring(2);
@@ -243,6 +518,21 @@ public class PIAXShell {
                             logger.error("-A option requires a agent property filename or directory.");
                         }
                         break;
+                    case 'w': {
+                        tmp_agentprops_watch = true;
+                        String tmp_agentprops_watch_str = arg.substring(2);
+                        if (tmp_agentprops_watch_str.equals("-"))
+                            tmp_agentprops_watch = false;
+                        break;
+                    }
+                    case 'f':
+                        i++;
+                        if (i < args.length) {
+                            tmp_script_str = args[i];
+                        } else {
+                            logger.error("-f option requires a script filename.");
+                        }
+                        break;
                     case 'a':
                         i++;
                         if (i < args.length) {
@@ -289,6 +579,51 @@ public class PIAXShell {
             autojoin = tmp_autojoin;
             logger.info("Auto join : " + autojoin);
 
+            join_backoff = DEFAULT_JOIN_BACKOFF;
+            if (!tmp_join_backoff_str.equals("")) {
+                try {
+                    join_backoff = Long.parseLong(tmp_join_backoff_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.peer.join.backoff should be number. : "
+                                    + tmp_join_backoff_str);
+                    isFault = true;
+                }
+                if (join_backoff < 1) {
+                    logger.warn("piax.peer.join.backoff should be 1 or more. Set default.");
+                    join_backoff = DEFAULT_JOIN_BACKOFF;
+                }
+            }
+            join_backoff_max = DEFAULT_JOIN_BACKOFF_MAX;
+            if (!tmp_join_backoff_max_str.equals("")) {
+                try {
+                    join_backoff_max = Long.parseLong(tmp_join_backoff_max_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.peer.join.backoff.max should be number. : "
+                                    + tmp_join_backoff_max_str);
+                    isFault = true;
+                }
+            }
+            if (join_backoff_max < join_backoff) {
+                logger.warn("piax.peer.join.backoff.max should be piax.peer.join.backoff or more. Set it.");
+                join_backoff_max = join_backoff;
+            }
+            join_attempts = DEFAULT_JOIN_ATTEMPTS;
+            if (!tmp_join_attempts_str.equals("")) {
+                try {
+                    join_attempts = Integer.parseInt(tmp_join_attempts_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.peer.join.attempts should be number. : "
+                                    + tmp_join_attempts_str);
+                    isFault = true;
+                }
+                if (join_attempts < 0) {
+                    logger.warn("piax.peer.join.attempts should be 0 or more. Set default.");
+                    join_attempts = DEFAULT_JOIN_ATTEMPTS;
+                }
+            }
+            logger.info("Join backoff(msec) : " + join_backoff + " - " + join_backoff_max
+                    + ", attempts : " + (join_attempts == 0 ? "<unlimited>" : String.valueOf(join_attempts)));
+
             use_interactiveshell = tmp_use_interactiveshell;
             logger.info("Use Interactive Shell : " + use_interactiveshell);
 
@@ -314,6 +649,305 @@ public class PIAXShell {
                 }
             }
 
+            agentprops_watch = tmp_agentprops_watch;
+            agentprops_watch_debounce = DEFAULT_AGENTPROPS_WATCH_DEBOUNCE;
+            if (!tmp_agentprops_watch_debounce_str.equals("")) {
+                try {
+                    agentprops_watch_debounce = Long.parseLong(tmp_agentprops_watch_debounce_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.agentprops.watch.debounce should be number. : "
+                                    + tmp_agentprops_watch_debounce_str);
+                    isFault = true;
+                }
+                if (agentprops_watch_debounce < 1) {
+                    logger.warn("piax.agentprops.watch.debounce should be 1 or more. Set default.");
+                    agentprops_watch_debounce = DEFAULT_AGENTPROPS_WATCH_DEBOUNCE;
+                }
+            }
+            if (agentprops_watch && (agprop == null || !agprop.isDirectory())) {
+                logger.warn("Agent property watch requires an agent property directory. Not watch.");
+                agentprops_watch = false;
+            }
+            checkpoint = tmp_checkpoint_str.equals("") ? null : new File(tmp_checkpoint_str);
+            restore = tmp_restore_str.equals("") ? null : new File(tmp_restore_str);
+            logger.info("Agent checkpoint : "
+                    + (checkpoint == null ? "<not use>" : checkpoint.getAbsolutePath()));
+            logger.info("Agent restore : "
+                    + (restore == null ? "<not use>" : restore.getAbsolutePath()));
+
+            logger.info("Agent property watch : " + agentprops_watch
+                    + (agentprops_watch ? ", debounce (msec) : " + agentprops_watch_debounce : ""));
+
+            script = null;
+            if (!tmp_script_str.equals("")) {
+                File tmp_script = new File(tmp_script_str);
+                if (tmp_script.isFile()) {
+                    script = tmp_script;
+                    logger.info("Script file : " + script.getAbsolutePath());
+                } else {
+                    logger.error("Script file you specified isn't found. : "
+                                    + tmp_script_str);
+                    isFault = true;
+                }
+            }
+
+            bootstrap_threads = DEFAULT_AGENT_BOOTSTRAP_THREADS;
+            if (!tmp_bootstrap_threads_str.equals("")) {
+                try {
+                    bootstrap_threads = Integer.parseInt(tmp_bootstrap_threads_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.agent.bootstrap.threads should be number. : "
+                                    + tmp_bootstrap_threads_str);
+                    isFault = true;
+                }
+                if (bootstrap_threads < 1) {
+                    logger.warn("piax.agent.bootstrap.threads should be 1 or more. Set default.");
+                    bootstrap_threads = DEFAULT_AGENT_BOOTSTRAP_THREADS;
+                }
+            }
+            logger.info("Agent bootstrap threads : " + bootstrap_threads);
+
+            async_threads = DEFAULT_ASYNC_THREADS;
+            if (!tmp_async_threads_str.equals("")) {
+                try {
+                    async_threads = Integer.parseInt(tmp_async_threads_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.async.threads should be number. : "
+                                    + tmp_async_threads_str);
+                    isFault = true;
+                }
+                if (async_threads < 1) {
+                    logger.warn("piax.shell.async.threads should be 1 or more. Set default.");
+                    async_threads = DEFAULT_ASYNC_THREADS;
+                }
+            }
+            async_maxinflight = DEFAULT_ASYNC_MAXINFLIGHT;
+            if (!tmp_async_maxinflight_str.equals("")) {
+                try {
+                    async_maxinflight = Integer.parseInt(tmp_async_maxinflight_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.async.maxinflight should be number. : "
+                                    + tmp_async_maxinflight_str);
+                    isFault = true;
+                }
+                if (async_maxinflight < 1) {
+                    logger.warn("piax.shell.async.maxinflight should be 1 or more. Set default.");
+                    async_maxinflight = DEFAULT_ASYNC_MAXINFLIGHT;
+                }
+            }
+            async_policy = DEFAULT_ASYNC_POLICY;
+            if (!tmp_async_policy_str.equals("")) {
+                try {
+                    async_policy = AsyncReturnExecutor.Policy.of(tmp_async_policy_str);
+                } catch (IllegalArgumentException e) {
+                    logger.error("piax.shell.async.policy should be block, reject or caller. : "
+                                    + tmp_async_policy_str);
+                    isFault = true;
+                }
+            }
+            async_timeout = DEFAULT_ASYNC_TIMEOUT;
+            if (!tmp_async_timeout_str.equals("")) {
+                try {
+                    async_timeout = Long.parseLong(tmp_async_timeout_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.async.timeout should be number. : "
+                                    + tmp_async_timeout_str);
+                    isFault = true;
+                }
+                if (async_timeout < 1) {
+                    logger.warn("piax.shell.async.timeout should be 1 or more. Set default.");
+                    async_timeout = DEFAULT_ASYNC_TIMEOUT;
+                }
+            }
+            logger.info("Async return poller threads : " + async_threads
+                    + ", max in flight : " + async_maxinflight
+                    + ", policy : " + async_policy.name().toLowerCase()
+                    + ", timeout : " + async_timeout);
+
+            output_queue = DEFAULT_OUTPUT_QUEUE;
+            if (!tmp_output_queue_str.equals("")) {
+                try {
+                    output_queue = Integer.parseInt(tmp_output_queue_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.output.queue should be number. : "
+                                    + tmp_output_queue_str);
+                    isFault = true;
+                }
+                if (output_queue < 1) {
+                    logger.warn("piax.shell.output.queue should be 1 or more. Set default.");
+                    output_queue = DEFAULT_OUTPUT_QUEUE;
+                }
+            }
+            output_policy = DEFAULT_OUTPUT_POLICY;
+            if (!tmp_output_policy_str.equals("")) {
+                try {
+                    output_policy = ConsoleOutput.Policy.of(tmp_output_policy_str);
+                } catch (IllegalArgumentException e) {
+                    logger.error("piax.shell.output.policy should be block or drop. : "
+                                    + tmp_output_policy_str);
+                    isFault = true;
+                }
+            }
+            logger.info("Console output queue : " + output_queue
+                    + ", policy : " + output_policy.name().toLowerCase());
+
+            discovery_cache_ttl = DEFAULT_DISCOVERY_CACHE_TTL;
+            if (!tmp_discovery_cache_ttl_str.equals("")) {
+                try {
+                    discovery_cache_ttl = Long.parseLong(tmp_discovery_cache_ttl_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.discovery.cache.ttl should be number. : "
+                                    + tmp_discovery_cache_ttl_str);
+                    isFault = true;
+                }
+                if (discovery_cache_ttl < 0) {
+                    logger.warn("piax.shell.discovery.cache.ttl should be 0 or more. Set default.");
+                    discovery_cache_ttl = DEFAULT_DISCOVERY_CACHE_TTL;
+                }
+            }
+            discovery_cache_size = DEFAULT_DISCOVERY_CACHE_SIZE;
+            if (!tmp_discovery_cache_size_str.equals("")) {
+                try {
+                    discovery_cache_size = Integer.parseInt(tmp_discovery_cache_size_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.discovery.cache.size should be number. : "
+                                    + tmp_discovery_cache_size_str);
+                    isFault = true;
+                }
+                if (discovery_cache_size < 1) {
+                    logger.warn("piax.shell.discovery.cache.size should be 1 or more. Set default.");
+                    discovery_cache_size = DEFAULT_DISCOVERY_CACHE_SIZE;
+                }
+            }
+            discovery_cache_results = DEFAULT_DISCOVERY_CACHE_RESULTS;
+            if (!tmp_discovery_cache_results_str.equals("")) {
+                try {
+                    discovery_cache_results = Integer.parseInt(tmp_discovery_cache_results_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.discovery.cache.results should be number. : "
+                                    + tmp_discovery_cache_results_str);
+                    isFault = true;
+                }
+                if (discovery_cache_results < 1) {
+                    logger.warn("piax.shell.discovery.cache.results should be 1 or more. Set default.");
+                    discovery_cache_results = DEFAULT_DISCOVERY_CACHE_RESULTS;
+                }
+            }
+            if (discovery_cache_ttl == 0) {
+                logger.info("Discovery cache : <not use>");
+            } else {
+                logger.info("Discovery cache ttl(msec) : " + discovery_cache_ttl
+                        + ", size : " + discovery_cache_size
+                        + ", results : " + discovery_cache_results);
+            }
+
+            server_port = DEFAULT_SERVER_PORT;
+            if (!tmp_server_port_str.equals("")) {
+                try {
+                    server_port = Integer.parseInt(tmp_server_port_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.server.port should be number. : "
+                                    + tmp_server_port_str);
+                    isFault = true;
+                }
+                if (server_port < 0 || 65535 < server_port) {
+                    logger.error("piax.shell.server.port is out of range. : "
+                                    + tmp_server_port_str);
+                    isFault = true;
+                }
+            }
+            server_threads = DEFAULT_SERVER_THREADS;
+            if (!tmp_server_threads_str.equals("")) {
+                try {
+                    server_threads = Integer.parseInt(tmp_server_threads_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.server.threads should be number. : "
+                                    + tmp_server_threads_str);
+                    isFault = true;
+                }
+                if (server_threads < 1) {
+                    logger.warn("piax.shell.server.threads should be 1 or more. Set default.");
+                    server_threads = DEFAULT_SERVER_THREADS;
+                }
+            }
+            if (server_port == 0) {
+                logger.info("Command server : <not use>");
+            } else {
+                logger.info("Command server port : " + server_port
+                        + ", threads : " + server_threads);
+            }
+
+            metrics_port = DEFAULT_METRICS_PORT;
+            if (!tmp_metrics_port_str.equals("")) {
+                try {
+                    metrics_port = Integer.parseInt(tmp_metrics_port_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.metrics.port should be number. : "
+                                    + tmp_metrics_port_str);
+                    isFault = true;
+                }
+                if (metrics_port < 0 || 65535 < metrics_port) {
+                    logger.error("piax.shell.metrics.port is out of range. : "
+                                    + tmp_metrics_port_str);
+                    isFault = true;
+                }
+            }
+            if (metrics_port == 0) {
+                logger.info("Metrics server : <not use>");
+            } else {
+                logger.info("Metrics server port : " + metrics_port);
+            }
+
+            activation_threads = DEFAULT_ACTIVATION_THREADS;
+            if (!tmp_activation_threads_str.equals("")) {
+                try {
+                    activation_threads = Integer.parseInt(tmp_activation_threads_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.agent.activation.threads should be number. : "
+                                    + tmp_activation_threads_str);
+                    isFault = true;
+                }
+                if (activation_threads < 1) {
+                    logger.warn("piax.agent.activation.threads should be 1 or more. Set default.");
+                    activation_threads = DEFAULT_ACTIVATION_THREADS;
+                }
+            }
+            logger.info("Agent activation threads : " + activation_threads);
+
+            activation_afterjoin = tmp_activation_afterjoin;
+            logger.info("Agent activation after join : " + activation_afterjoin);
+
+            shutdown_threads = DEFAULT_SHUTDOWN_THREADS;
+            if (!tmp_shutdown_threads_str.equals("")) {
+                try {
+                    shutdown_threads = Integer.parseInt(tmp_shutdown_threads_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.shutdown.threads should be number. : "
+                                    + tmp_shutdown_threads_str);
+                    isFault = true;
+                }
+                if (shutdown_threads < 1) {
+                    logger.warn("piax.shell.shutdown.threads should be 1 or more. Set default.");
+                    shutdown_threads = DEFAULT_SHUTDOWN_THREADS;
+                }
+            }
+            shutdown_deadline = DEFAULT_SHUTDOWN_DEADLINE;
+            if (!tmp_shutdown_deadline_str.equals("")) {
+                try {
+                    shutdown_deadline = Long.parseLong(tmp_shutdown_deadline_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.shell.shutdown.deadline should be number. : "
+                                    + tmp_shutdown_deadline_str);
+                    isFault = true;
+                }
+                if (shutdown_deadline < 1) {
+                    logger.warn("piax.shell.shutdown.deadline should be 1 or more. Set default.");
+                    shutdown_deadline = DEFAULT_SHUTDOWN_DEADLINE;
+                }
+            }
+            logger.info("Shutdown threads : " + shutdown_threads
+                    + ", deadline (msec) : " + shutdown_deadline);
+
             if (tmp_piaxaddress.equals("")) {
                 logger.warn("A PIAX address is not specified. Choose appropriate address.");
                 tmp_piaxaddress = LocalInetAddrs.choice().getHostAddress();
@@ -323,17 +957,81 @@ public class PIAXShell {
                 tmp_piaxport = Integer.toString(DEFAULT_PIAX_PORT);
             }
 
+            peer_count = DEFAULT_PEER_COUNT;
+            if (!tmp_peer_count_str.equals("")) {
+                try {
+                    peer_count = Integer.parseInt(tmp_peer_count_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.peer.count should be number. : "
+                                    + tmp_peer_count_str);
+                    isFault = true;
+                }
+                if (peer_count < 1) {
+                    logger.warn("piax.peer.count should be 1 or more. Set default.");
+                    peer_count = DEFAULT_PEER_COUNT;
+                }
+            }
+            String peer_transport = DEFAULT_PEER_TRANSPORT;
+            if (!tmp_peer_transport_str.equals("")) {
+                peer_transport = tmp_peer_transport_str;
+                if (!peer_transport.equals("tcp") && !peer_transport.equals("emu")) {
+                    logger.error("piax.peer.transport should be tcp or emu. : "
+                                    + tmp_peer_transport_str);
+                    isFault = true;
+                }
+            }
+            logger.info("Peers : " + peer_count + ", transport : " + peer_transport);
+
             logger.info("PIAX address : " + tmp_piaxaddress);
             logger.info("PIAX port : " + tmp_piaxport);
-            myLocator = new TcpLocator(new InetSocketAddress(tmp_piaxaddress, Integer.parseInt(tmp_piaxport)));
-            if (!tmp_seed.equals("")) {
-                String[] seedEle = tmp_seed.split(":");
-                seeds = Collections.singleton((PeerLocator) new TcpLocator(
-                        new InetSocketAddress(seedEle[0], Integer
-                                .parseInt(seedEle[1]))));
+            int piaxport = Integer.parseInt(tmp_piaxport);
+            if (65535 < piaxport + peer_count - 1) {
+                logger.error("PIAX ports of peers are out of range. : "
+                                + piaxport + "-" + (piaxport + peer_count - 1));
+                isFault = true;
+            }
+            myLocators = new ArrayList<PeerLocator>(peer_count);
+            for (int i = 0; i < peer_count; i++) {
+                if (peer_transport.equals("emu")) {
+                    // Peers in this process only. Port is the virtual port.
+                    myLocators.add(new EmuLocator(piaxport + i));
+                } else {
+                    myLocators.add(new TcpLocator(new InetSocketAddress(tmp_piaxaddress, piaxport + i)));
+                }
+            }
+            seed_probe_timeout = DEFAULT_SEED_PROBE_TIMEOUT;
+            if (!tmp_seed_probe_timeout_str.equals("")) {
+                try {
+                    seed_probe_timeout = Integer.parseInt(tmp_seed_probe_timeout_str);
+                } catch (NumberFormatException e) {
+                    logger.error("piax.peer.seed.probe.timeout should be number. : "
+                                    + tmp_seed_probe_timeout_str);
+                    isFault = true;
+                }
+                if (seed_probe_timeout < 1) {
+                    logger.warn("piax.peer.seed.probe.timeout should be 1 or more. Set default.");
+                    seed_probe_timeout = DEFAULT_SEED_PROBE_TIMEOUT;
+                }
+            }
+            seedAddresses = null;
+            if (!tmp_seed.trim().equals("") && !peer_transport.equals("emu")) {
+                try {
+                    seedAddresses = SeedProber.parse(tmp_seed);
+                } catch (IllegalArgumentException e) {
+                    logger.error("piax.peer.seed : " + e.getMessage());
+                    isFault = true;
+                }
+            }
+            if (seedAddresses != null && !seedAddresses.isEmpty()) {
+                logger.info("Seed peers : " + seedAddresses
+                        + ", probe timeout(msec) : " + seed_probe_timeout);
             } else {
+                seedAddresses = null;
+                if (!tmp_seed.trim().equals("") && peer_transport.equals("emu")) {
+                    logger.warn("Seed peer is ignored for emu transport.");
+                }
                 logger.info("Seed peers are not specified. Run as a seed peer.");
-                seeds = Collections.singleton(myLocator);
+                seeds = Collections.singleton(myLocators.get(0));
             }
 
             return !isFault;
@@ -347,46 +1045,142 @@ public class PIAXShell {
         // - setup phase
 
         // Initialize PIAX
+        long stime = System.nanoTime();
+        if (seedAddresses != null) {
+            seeds = probeSeeds();
+        }
         try {
-            peer = new AgentPeer(null, peerName, myLocator, seeds, false,
-                    agclassesdirs);
+            for (int i = 0; i < peer_count; i++) {
+                // The first peer has the name as is, for a single peer.
+                String name = i == 0 ? peerName : peerName + "-" + i;
+                AgentPeer peer = new AgentPeer(null, name, myLocators.get(i), seeds, false,
+                        agclassesdirs);
+                ShellPeer p = new ShellPeer(i, peer);
+                p.join = new JoinManager(peer, join_backoff, join_backoff_max, join_attempts);
+                if (0 < discovery_cache_ttl) {
+                    p.discoveryCache = new DiscoveryCache(discovery_cache_ttl, discovery_cache_size,
+                            discovery_cache_results);
+                }
+                peers.add(p);
+            }
         } catch (IOException e) {
             logger.error("*** PIAX not started as IO Error.", e);
+            finPeers();
             return;
         } catch (IllegalArgumentException e) {
             logger.error("*** PIAX not started as Argument Error.", e);
+            finPeers();
             return;
         } catch (MagicNumberConflictException e) {
             logger.error("*** PIAX not started as Transport-MagicNumber Confilict Error.", e);
+            finPeers();
             return;
         }
+        if (1 < peer_count) {
+            logger.info("Peers started. peers:" + peer_count
+                    + " time(msec):" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stime));
+        }
+
+        // Terminate on SIGTERM or System.exit as well.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                terminate();
+            }
+        }, "PIAXShell-shutdown"));
 
-        // Create agents from agent property files.
-        if (agprop != null) {
-            if (agprop.isDirectory()) {
-                for (File file : agprop.listFiles()) {
-                    createAgentFromPropertyFile(file);
+        // Join in background while agents are created.
+        if (autojoin) {
+            startJoin();
+        }
+
+        // Restore agents from the snapshot, and create agents from agent
+        // property files not restored, on each peer.
+        for (ShellPeer p : peers) {
+            Set<File> restored = Collections.emptySet();
+            if (restore != null) {
+                restored = restoreAgents(p);
+            }
+            if (agprop != null) {
+                File[] files = agprop.isDirectory() ? agprop.listFiles() : new File[] { agprop };
+                List<File> creating = new ArrayList<File>();
+                for (File file : files) {
+                    if (!restored.contains(file.getAbsoluteFile()))
+                        creating.add(file);
+                }
+                if (!creating.isEmpty()) {
+                    bootstrapAgents(p, creating.toArray(new File[creating.size()]));
                 }
-            } else {
-                createAgentFromPropertyFile(agprop);
             }
         }
 
         try {
-            // Auto join
-            if (autojoin) {
-                peer.online();
-                logger.info("PIAX joined.");
+            // Activate agents, when the peer joined if configured.
+            for (ShellPeer p : peers) {
+                if (autojoin && activation_afterjoin) {
+                    final ShellPeer sp = p;
+                    p.join.onFinished(new Runnable() {
+                        public void run() {
+                            notifyActivate(sp);
+                        }
+                    });
+                } else {
+                    notifyActivate(p);
+                }
+            }
+
+            // Reload agents when agent property files change.
+            if (agentprops_watch) {
+                try {
+                    propWatcher = new AgentPropertyWatcher(agprop, agentprops_watch_debounce,
+                            new AgentPropertyWatcher.Listener() {
+                                public void changed(Set<File> files, boolean overflow) {
+                                    reloadAgents(files, overflow);
+                                }
+                            });
+                    propWatcher.start();
+                    logger.info("Watching agent property directory. : " + agprop.getAbsolutePath());
+                } catch (IOException e) {
+                    logger.error("*** Agent property directory not watched. : " + e.getMessage());
+                }
             }
-    
-            // Activate agents.
-            notifyActivate();
 
-            logger.info("Finished initializing");
-            if (use_interactiveshell) {
+            logger.info("Finished initializing. Agents are activated in background.");
+            ShellCommandProcessor shell = newShellCommandProcessor();
+
+            // Start command server for local clients.
+            if (server_port != 0) {
+                try {
+                    server = new CommandServer(shell, server_port, server_threads);
+                    server.start();
+                    logger.info("Command server started. : "
+                            + InetAddress.getLoopbackAddress().getHostAddress()
+                            + ":" + server.getPort());
+                } catch (IOException e) {
+                    logger.error("*** Command server not started. : " + e.getMessage());
+                }
+            }
+
+            // Start metrics server for local scrapers.
+            if (metrics_port != 0) {
+                try {
+                    metrics = new MetricsServer(shell, metrics_port);
+                    metrics.start();
+                    logger.info("Metrics server started. : http://"
+                            + InetAddress.getLoopbackAddress().getHostAddress()
+                            + ":" + metrics.getPort() + "/metrics");
+                } catch (IOException e) {
+                    logger.error("*** Metrics server not started. : " + e.getMessage());
+                }
+            }
+
+            if (script != null) {
+                // Run script instead of interactive shell.
+                logger.info("Run script. : " + script.getPath());
+                shell.script(script);
+            } else if (use_interactiveshell) {
                 // Run console interactive shell.
                 logger.info("Start interactive shell.");
-                new ShellCommandProcessor(peer).mainLoop();
+                shell.mainLoop();
             } else {
                 try {
                     while (true) {
@@ -395,86 +1189,647 @@ public class PIAXShell {
                 } catch (InterruptedException e) {
                 }
             }
+        } catch (Exception e1) {
+            logger.error(e1.getMessage(), e1);
+        }
+
+        // - Terminate phase
+        terminate();
+    }
+
+    /**
+     * Close servers, dispose all agents and finalize PIAX. Does nothing if
+     * already terminated.
+     * 
+     * Agents are disposed concurrently. Agents not disposed by the shutdown
+     * deadline are abandoned, so a hanging agent does not block leaving the
+     * network.
+     */
+    private void terminate() {
+        if (!terminated.compareAndSet(false, true))
+            return;
+        long stime = System.nanoTime();
+
+        if (propWatcher != null) {
+            propWatcher.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+        for (ShellPeer p : peers) {
+            // Stop retrying join, and activation before agents are saved
+            // and disposed.
+            if (p.join != null)
+                p.join.cancel();
+            synchronized (p) {
+                if (p.activation != null)
+                    p.activation.shutdown();
+            }
+        }
+        long ctime = System.nanoTime();
+
+        if (checkpoint != null) {
+            for (ShellPeer p : peers) {
+                checkpointAgents(p);
+            }
+        }
+        long ptime = System.nanoTime();
 
-            // - Terminate phase
+        int[] counts = disposeAgents();
+        long dtime = System.nanoTime();
 
-            // Dispose all agents.
-            Set<AgentId> ags = new HashSet<AgentId>();
-            for (AgentId agId : peer.getHome().getAgentIds()) {
-                ags.add(agId);
+        for (ShellPeer p : peers) {
+            try {
+                // Terminate PIAX
+                if (p.peer.isOnline())
+                    p.peer.offline();     // Leave from PIAX network.
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
             }
-            for (AgentId agId : ags) {
+        }
+        long otime = System.nanoTime();
+        if (asyncReturnExecutor != null) {
+            // Returns no longer arrive.
+            asyncReturnExecutor.shutdown();
+        }
+        finPeers();
+        if (console != null) {
+            // Write results arrived until the end.
+            console.close(OUTPUT_CLOSE_TIMEOUT);
+        }
+        long etime = System.nanoTime();
+
+        logger.info("Terminated. agents disposed:" + counts[0]
+                + " failed:" + counts[1]
+                + " abandoned:" + counts[2]
+                + " time(msec):" + TimeUnit.NANOSECONDS.toMillis(etime - stime));
+        logger.info("Terminate phases (msec)."
+                + " servers:" + TimeUnit.NANOSECONDS.toMillis(ctime - stime)
+                + " checkpoint:" + TimeUnit.NANOSECONDS.toMillis(ptime - ctime)
+                + " dispose:" + TimeUnit.NANOSECONDS.toMillis(dtime - ptime)
+                + " offline:" + TimeUnit.NANOSECONDS.toMillis(otime - dtime)
+                + " fin:" + TimeUnit.NANOSECONDS.toMillis(etime - otime));
+    }
+
+    /**
+     * Probe seeds in parallel and rank them by connect latency. Dead seeds
+     * are dropped unless all seeds are dead.
+     * 
+     * @return seeds to join, in the order to try.
+     */
+    private Collection<PeerLocator> probeSeeds() {
+        long stime = System.nanoTime();
+        List<InetSocketAddress> selves = new ArrayList<InetSocketAddress>();
+        for (PeerLocator locator : myLocators) {
+            if (locator instanceof TcpLocator)
+                selves.add(((TcpLocator) locator).getSocketAddress());
+        }
+        List<SeedProber.Probe> probes = new SeedProber(seed_probe_timeout).probe(seedAddresses, selves);
+
+        List<PeerLocator> alive = new ArrayList<PeerLocator>();
+        StringBuilder sb = new StringBuilder("Seed probe (msec).");
+        for (SeedProber.Probe probe : probes) {
+            sb.append(' ').append(probe.address.getHostString()).append(':')
+                    .append(probe.address.getPort()).append(':');
+            if (probe.self) {
+                sb.append("self");
+            } else if (probe.isAlive()) {
+                sb.append(LatencyHistogram.toMillis(probe.nanos));
+            } else {
+                sb.append("dead(").append(probe.error).append(')');
+            }
+            if (probe.isAlive())
+                alive.add(new TcpLocator(probe.address));
+        }
+        logger.info(sb.toString());
+
+        if (alive.isEmpty()) {
+            logger.warn("No seed peer responded. Try all seeds in the given order.");
+            for (InetSocketAddress address : seedAddresses) {
+                alive.add(new TcpLocator(address));
+            }
+        }
+        logger.info("Seed peers ranked. alive:" + alive.size() + " of " + seedAddresses.size()
+                + " time(msec):" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stime));
+        return alive;
+    }
+
+    /**
+     * @return the snapshot file of the peer. Peers after the first have the
+     *         peer number as a suffix.
+     */
+    private static File snapshotOf(File base, ShellPeer p) {
+        return p.no == 0 ? base : new File(base.getPath() + "." + p.no);
+    }
+
+    /**
+     * Save all agents of a peer to the checkpoint snapshot. Agents which
+     * are not persistent are not saved, and are created from property files
+     * at the next restore.
+     */
+    private void checkpointAgents(ShellPeer p) {
+        long stime = System.nanoTime();
+        File file = snapshotOf(checkpoint, p);
+        AgentHome home = p.peer.getHome();
+        Map<AgentId, File> agentFiles = new HashMap<AgentId, File>();
+        for (Map.Entry<File, AgentId> e : p.fileAgents.entrySet()) {
+            agentFiles.put(e.getValue(), e.getKey());
+        }
+
+        AgentSnapshot.Writer writer;
+        File work;
+        try {
+            // The work file first, so a failure leaves no snapshot open.
+            work = File.createTempFile("piaxshell", ".agent");
+        } catch (IOException e) {
+            logger.error("*** Agents not checkpointed. : " + e.getMessage());
+            return;
+        }
+        try {
+            writer = new AgentSnapshot.Writer(file);
+        } catch (IOException e) {
+            work.delete();
+            logger.error("*** Agents not checkpointed. : " + e.getMessage());
+            return;
+        }
+        int notPersistent = 0;
+        int failed = 0;
+        try {
+            for (AgentId agId : home.getAgentIds()) {
+                File agentFile = agentFiles.get(agId);
+                Long modified = p.fileModified.get(agId);
+                Integer priority = agentPriorities.get(agId);
                 try {
-                    peer.getHome().destroyAgent(agId);
+                    writer.add(home, agId, new AgentSnapshot.Entry(agentFile,
+                            modified != null ? modified : 0,
+                            priority != null ? priority : ActivationScheduler.DEFAULT_PRIORITY,
+                            home.getAgentName(agId)), work);
+                } catch (AgentAbilityException e) {
+                    notPersistent++;
                 } catch (NoSuchAgentException e) {
                     logger.debug("Ignore a NoSuchAgentException.");
+                } catch (IOException e) {
+                    // The snapshot can not be written any more.
+                    throw e;
+                } catch (Exception e) {
+                    if (failed++ == 0)
+                        logger.warn("Failed saving an agent. ID:" + agId, e);
                 }
             }
+            writer.commit();
+        } catch (IOException e) {
+            logger.error("*** Agents not checkpointed. : " + e.getMessage());
+            writer.abort();
+            return;
+        } finally {
+            work.delete();
+        }
+        logger.info("Agents checkpointed. peer:" + p.no
+                + " saved:" + writer.getCount()
+                + " not persistent:" + notPersistent
+                + " failed:" + failed
+                + " time(msec):" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stime)
+                + " file:" + file.getPath() + " (" + file.length() + " bytes)");
+    }
 
-            // Terminate PIAX
-            if (peer.isOnline())
-                peer.offline();     // Leave from PIAX network.
-        } catch (Exception e1) {
-            logger.error(e1.getMessage(), e1);
+    /**
+     * Restore agents of a peer from the snapshot one by one. Records of
+     * property files deleted or modified after the checkpoint are skipped,
+     * so those agents are created from the files as usual.
+     * 
+     * @return absolute property files whose agents are restored.
+     */
+    private Set<File> restoreAgents(ShellPeer p) {
+        long stime = System.nanoTime();
+        Set<File> restored = new HashSet<File>();
+        File file = snapshotOf(restore, p);
+        if (!file.isFile()) {
+            logger.info("Agent snapshot not found. Create agents from property files. : "
+                    + file.getPath());
+            return restored;
+        }
+
+        AgentHome home = p.peer.getHome();
+        AgentSnapshot.Reader reader;
+        File work;
+        try {
+            reader = new AgentSnapshot.Reader(file);
+            work = File.createTempFile("piaxshell", ".agent");
+        } catch (IOException e) {
+            logger.error("*** Agents not restored. : " + e.getMessage());
+            return restored;
+        }
+        int count = 0;
+        int stale = 0;
+        int failed = 0;
+        try {
+            AgentSnapshot.Entry entry;
+            while ((entry = reader.next()) != null) {
+                if (entry.isStale()) {
+                    stale++;
+                    continue;
+                }
+                try {
+                    AgentId agId = reader.restore(home, work);
+                    agentPriorities.put(agId, entry.priority);
+                    p.agents.add(agId, home.getAgentName(agId), home.isAgentSleeping(agId));
+                    if (entry.file != null) {
+                        p.fileAgents.put(entry.file, agId);
+                        p.fileModified.put(agId, entry.lastModified);
+                        restored.add(entry.file);
+                    }
+                    count++;
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    if (failed++ == 0)
+                        logger.warn("Failed restoring an agent. name:" + entry.name, e);
+                }
+            }
+        } catch (IOException e) {
+            // Agents not restored yet are created from property files.
+            logger.error("*** Agent snapshot is broken. : " + e.getMessage());
+        } finally {
+            reader.close();
+            work.delete();
+        }
+        logger.info("Agents restored. peer:" + p.no
+                + " restored:" + count
+                + " stale:" + stale
+                + " failed:" + failed
+                + " time(msec):" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stime));
+        return restored;
+    }
+
+    private void finPeers() {
+        for (ShellPeer p : peers) {
+            p.peer.fin(); // Finalize PIAX.
         }
-        peer.fin(); // Finalize PIAX.
+    }
+
+    /**
+     * Destroy all agents of all peers by a worker pool until the shutdown
+     * deadline.
+     * 
+     * @return numbers of agents disposed, failed and abandoned.
+     */
+    private int[] disposeAgents() {
+        final AtomicInteger disposed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        Map<AgentId, ShellPeer> ags = new HashMap<AgentId, ShellPeer>();
+        for (ShellPeer p : peers) {
+            for (AgentId agId : p.peer.getHome().getAgentIds()) {
+                ags.put(agId, p);
+            }
+        }
+        if (ags.isEmpty())
+            return new int[] { 0, 0, 0 };
+
+        // Daemon threads, so that agents abandoned do not keep the JVM alive.
+        ExecutorService disposeExecutor = Executors.newFixedThreadPool(
+                Math.min(shutdown_threads, ags.size()), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread th = new Thread(r, "AgentDisposer-" + count.incrementAndGet());
+                        th.setDaemon(true);
+                        return th;
+                    }
+                });
+        for (Map.Entry<AgentId, ShellPeer> ag : ags.entrySet()) {
+            final AgentId agId = ag.getKey();
+            final ShellPeer p = ag.getValue();
+            disposeExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        p.peer.getHome().destroyAgent(agId);
+                        p.agents.remove(agId);
+                        disposed.incrementAndGet();
+                    } catch (NoSuchAgentException e) {
+                        logger.debug("Ignore a NoSuchAgentException.");
+                        p.agents.remove(agId);
+                        disposed.incrementAndGet();
+                    } catch (Exception e) {
+                        logger.warn("Failed disposing an agent. ID:" + agId, e);
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        disposeExecutor.shutdown();
+        try {
+            if (!disposeExecutor.awaitTermination(shutdown_deadline, TimeUnit.MILLISECONDS)) {
+                logger.warn("Agents not disposed by the deadline are abandoned.");
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while disposing agents.");
+            Thread.currentThread().interrupt();
+        }
+        disposeExecutor.shutdownNow();
+        int d = disposed.get();
+        int f = failed.get();
+        return new int[] { d, f, ags.size() - d - f };
+    }
+
+    /**
+     * @return a shell command processor of the peers. An executor of async
+     *         returns is shared by all peers. Output goes through the
+     *         console output stage.
+     */
+    private ShellCommandProcessor newShellCommandProcessor() {
+        console = new ConsoleOutput(System.out, output_queue, output_policy);
+        asyncReturnExecutor = new AsyncReturnExecutor(async_threads, async_maxinflight, async_policy,
+                async_timeout);
+        return new ShellCommandProcessor(peers, asyncReturnExecutor, console);
+    }
+
+    /**
+     * Create agents from agent property files.
+     * If bootstrap threads are more than 1, agents are loaded, created and
+     * initialized concurrently by a worker pool.
+     * 
+     * @param p
+     *            the peer which has the agents.
+     * @param files
+     *            agent property files.
+     */
+    private void bootstrapAgents(final ShellPeer p, File[] files) {
+        final BootstrapTimer timer = new BootstrapTimer();
+        long stime = System.nanoTime();
+
+        int threads = Math.min(bootstrap_threads, files.length);
+        if (threads <= 1) {
+            for (File file : files) {
+                createAgentFromPropertyFile(p, file, timer);
+            }
+        } else {
+            ExecutorService bootstrapExecutor = Executors.newFixedThreadPool(threads);
+            for (final File file : files) {
+                bootstrapExecutor.execute(new Runnable() {
+                    public void run() {
+                        createAgentFromPropertyFile(p, file, timer);
+                    }
+                });
+            }
+            bootstrapExecutor.shutdown();
+            try {
+                while (!bootstrapExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    logger.info("Waiting for agent bootstrap. created:"
+                            + timer.created.get() + " failed:" + timer.failed.get());
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for agent bootstrap.");
+                bootstrapExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long etime = System.nanoTime();
+        logger.info("Agent bootstrap finished. peer:" + p.no
+                + " files:" + files.length
+                + " created:" + timer.created.get()
+                + " failed:" + timer.failed.get()
+                + " threads:" + Math.max(threads, 1)
+                + " time(msec):" + TimeUnit.NANOSECONDS.toMillis(etime - stime));
+        logger.info("Agent bootstrap phases (msec, total of all workers)."
+                + " load:" + TimeUnit.NANOSECONDS.toMillis(timer.loadNanos.get())
+                + " create:" + TimeUnit.NANOSECONDS.toMillis(timer.createNanos.get())
+                + " init:" + TimeUnit.NANOSECONDS.toMillis(timer.initNanos.get()));
     }
 
     /**
      * Create agents from agent property files.
      * 
+     * @param p
+     *            the peer which has the agent.
      * @param file
      *            A directory which has agent property.
+     * @param timer
+     *            accumulates time spent on each bootstrap phase.
      */
-    private void createAgentFromPropertyFile(File file) {
+    private void createAgentFromPropertyFile(ShellPeer p, File file, BootstrapTimer timer) {
         logger.info("Opening property file : " + file.getName());
         Properties agentprop = new Properties();
+        long modified = file.lastModified();
 
+        long stime = System.nanoTime();
         try {
             agentprop.load(new FileInputStream(file));
         } catch (FileNotFoundException e) {
             logger.error("Agent property file not found.");
+            timer.failed.incrementAndGet();
             // Ignore unreadable file.
             return;
         } catch (IOException e) {
             logger.error("IO error when loading agent property file.");
+            timer.failed.incrementAndGet();
             // Ignore unreadable file.
             return;
+        } finally {
+            timer.loadNanos.addAndGet(System.nanoTime() - stime);
         }
 
         String classname = agentprop.getProperty("piax.agent.class");
         String agentname = agentprop.getProperty("piax.agent.name");
+        String prioritystr = agentprop.getProperty("piax.agent.priority");
 
         // Check null or empty element.
         if (classname == null || classname.equals("")) {
             logger.error("piax.agent.class is null : " + classname);
+            timer.failed.incrementAndGet();
             return;
         }
         if (agentname == null || agentname.equals("")) {
             logger.error("piax.agent.name is null : " + agentname);
+            timer.failed.incrementAndGet();
             return;
         }
+        int priority = ActivationScheduler.DEFAULT_PRIORITY;
+        if (prioritystr != null && !prioritystr.trim().equals("")) {
+            try {
+                priority = Integer.parseInt(prioritystr.trim());
+            } catch (NumberFormatException e) {
+                logger.error("piax.agent.priority should be number. : " + prioritystr);
+                timer.failed.incrementAndGet();
+                return;
+            }
+        }
 
         try {
-            AgentHome home = peer.getHome();
+            AgentHome home = p.peer.getHome();
+            stime = System.nanoTime();
             AgentId agtid = home.createAgent(classname, agentname);
-            if (!(Boolean) home.call(agtid, "initAgent", new Object[] { file })) {
+            long ctime = System.nanoTime();
+            timer.createNanos.addAndGet(ctime - stime);
+            boolean initialized = (Boolean) home.call(agtid, "initAgent", new Object[] { file });
+            timer.initNanos.addAndGet(System.nanoTime() - ctime);
+            if (!initialized) {
                 logger.error("Failed initializing Agent. Class:" + classname
                         + " Name:" + agentname);
                 // Dispose if creating agent failed.
                 home.destroyAgent(agtid);
+                timer.failed.incrementAndGet();
                 return;
             }
+            agentPriorities.put(agtid, priority);
+            p.agents.add(agtid, agentname, false);
+            p.fileAgents.put(file.getAbsoluteFile(), agtid);
+            p.fileModified.put(agtid, modified);
+            timer.created.incrementAndGet();
             logger.info("Craeted an agent named " + agentname + " based by " + classname + " as ID:" + agtid);
         } catch (Exception e) {
+            timer.failed.incrementAndGet();
             logger.error(e.getMessage(), e);
         }
     }
 
-    private void notifyActivate() {
-        AgentHome home = peer.getHome();
-        for (AgentId aid : home.getAgentIds()) {
-            home.callOneway(aid, "activate", new Object[]{});
+    /**
+     * Reconcile agents with changed agent property files. An agent of a
+     * deleted file is destroyed, an agent of a modified file is created
+     * again, and a new file creates an agent. New agents are activated.
+     * 
+     * @param files
+     *            changed files.
+     * @param overflow
+     *            true to check all files of the agent property directory.
+     */
+    private synchronized void reloadAgents(Set<File> files, boolean overflow) {
+        for (ShellPeer p : peers) {
+            reloadAgents(p, files, overflow);
+        }
+    }
+
+    private void reloadAgents(final ShellPeer p, Set<File> files, boolean overflow) {
+        long stime = System.nanoTime();
+        Set<File> changed = new LinkedHashSet<File>();
+        for (File file : files) {
+            changed.add(file.getAbsoluteFile());
+        }
+        if (overflow) {
+            // Modifications lost can not be found. Find created and deleted.
+            File[] listed = agprop.listFiles();
+            if (listed != null) {
+                for (File file : listed) {
+                    if (!p.fileAgents.containsKey(file.getAbsoluteFile()))
+                        changed.add(file.getAbsoluteFile());
+                }
+            }
+            for (File file : p.fileAgents.keySet()) {
+                if (!file.exists())
+                    changed.add(file);
+            }
+        }
+
+        AgentHome home = p.peer.getHome();
+        int destroyed = 0;
+        int created = 0;
+        List<File> creating = new ArrayList<File>();
+        for (File file : changed) {
+            AgentId old = p.fileAgents.remove(file);
+            if (old != null) {
+                agentPriorities.remove(old);
+                p.fileModified.remove(old);
+                p.agents.remove(old);
+                try {
+                    home.destroyAgent(old);
+                    destroyed++;
+                    logger.info("Destroyed an agent of " + file.getName() + " ID:" + old);
+                } catch (NoSuchAgentException e) {
+                    logger.debug("Ignore a NoSuchAgentException.");
+                }
+            }
+            if (file.isFile() && !AgentPropertyWatcher.isIgnored(file.getName()))
+                creating.add(file);
+        }
+
+        if (!creating.isEmpty()) {
+            bootstrapAgents(p, creating.toArray(new File[creating.size()]));
+            final List<AgentId> aids = new ArrayList<AgentId>();
+            for (File file : creating) {
+                AgentId aid = p.fileAgents.get(file);
+                if (aid == null)
+                    continue;   // failed creating.
+                created++;
+                aids.add(aid);
+            }
+            // Activate them as agents at boot.
+            if (autojoin && activation_afterjoin) {
+                p.join.onFinished(new Runnable() {
+                    public void run() {
+                        activateAgents(p, aids);
+                    }
+                });
+            } else {
+                activateAgents(p, aids);
+            }
+        }
+        logger.info("Agent property reload finished. peer:" + p.no
+                + " changed:" + changed.size()
+                + " destroyed:" + destroyed
+                + " created:" + created
+                + " time(msec):" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stime));
+    }
+
+    /**
+     * Start joining all peers in background. If seeds are not specified, the
+     * first peer is the seed of others, so others start when it joined.
+     */
+    private void startJoin() {
+        final ShellPeer first = peers.get(0);
+        first.join.start();
+        for (int i = 1; i < peers.size(); i++) {
+            final ShellPeer p = peers.get(i);
+            if (seedAddresses == null) {
+                first.join.onFinished(new Runnable() {
+                    public void run() {
+                        p.join.start();
+                    }
+                });
+            } else {
+                p.join.start();
+            }
+        }
+        logger.info("PIAX joining in background.");
+    }
+
+    /**
+     * Start activating agents of a peer by priority in background.
+     */
+    private void notifyActivate(ShellPeer p) {
+        activateAgents(p, p.peer.getHome().getAgentIds());
+    }
+
+    /**
+     * Activate agents by the activation scheduler of the peer, so info and
+     * metrics count them. Agents already activated are ignored.
+     */
+    private void activateAgents(ShellPeer p, Collection<AgentId> aids) {
+        synchronized (p) {
+            // Agents are being disposed.
+            if (terminated.get())
+                return;
+            if (p.activation == null) {
+                p.activation = new ActivationScheduler(p.peer.getHome(), activation_threads);
+            }
+            for (AgentId aid : aids) {
+                Integer priority = agentPriorities.get(aid);
+                p.activation.add(aid, priority != null ? priority : ActivationScheduler.DEFAULT_PRIORITY);
+            }
+            p.activation.start();
         }
     }
+
+    /**
+     * Counters of agent bootstrap shared by bootstrap workers.
+     */
+    private static class BootstrapTimer {
+        final AtomicLong loadNanos = new AtomicLong();
+        final AtomicLong createNanos = new AtomicLong();
+        final AtomicLong initNanos = new AtomicLong();
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+    }
 }
@@ -0,0 +1,227 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.piax.agent.AgentId;
+
+/**
+ * Reduces results of a discovery call to an aggregate as they arrive.
+ *
+ * count, sum, min and max keep a few numbers, and topk:N keeps N results, so
+ * memory does not depend on the number of responses. distinct keeps the
+ * values seen, up to MAX_DISTINCT, and counts values after that as not
+ * distinct. sum, min, max and topk take numbers or strings of numbers, and
+ * count other values as skipped.
+ *
+ * Results are reduced at the caller. The overlay aggregation of AgentHomeImpl
+ * only works with agents written as aggregating agents, and returns only the
+ * merged value, not the responses and failures.
+ */
+final class ResultAggregator {
+    static final int MAX_DISTINCT = 10000;
+    private static final int MAX_DISTINCT_SHOWN = 10;
+
+    enum Kind {
+        COUNT, SUM, MIN, MAX, TOPK, DISTINCT
+    }
+
+    /**
+     * A result kept by topk.
+     */
+    private static final class Ranked {
+        final double number;
+        final Object value;
+        final AgentId agentId;
+
+        Ranked(double number, Object value, AgentId agentId) {
+            this.number = number;
+            this.value = value;
+            this.agentId = agentId;
+        }
+    }
+
+    private static final Comparator<Ranked> ASCENDING = new Comparator<Ranked>() {
+        public int compare(Ranked a, Ranked b) {
+            return Double.compare(a.number, b.number);
+        }
+    };
+
+    private final Kind kind;
+    private final int k;
+
+    private long responses = 0;
+    private long failed = 0;
+    private long skipped = 0;
+    // numbers of sum, min and max.
+    private long count = 0;
+    private double sum = 0;
+    private long longSum = 0;
+    private boolean integral = true;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private Object minValue = null;
+    private Object maxValue = null;
+    // the smallest of top k at the head.
+    private final PriorityQueue<Ranked> top;
+    private final Set<Object> distinct;
+    private boolean distinctOverflow = false;
+
+    private ResultAggregator(Kind kind, int k) {
+        this.kind = kind;
+        this.k = k;
+        this.top = kind == Kind.TOPK ? new PriorityQueue<Ranked>(k + 1, ASCENDING) : null;
+        this.distinct = kind == Kind.DISTINCT ? new HashSet<Object>() : null;
+    }
+
+    /**
+     * @param spec
+     *            count, sum, min, max, topk:N or distinct.
+     * @return a new aggregator.
+     * @throws IllegalArgumentException
+     *             if the spec is unknown.
+     */
+    static ResultAggregator of(String spec) {
+        if (spec.equals("count"))
+            return new ResultAggregator(Kind.COUNT, 0);
+        if (spec.equals("sum"))
+            return new ResultAggregator(Kind.SUM, 0);
+        if (spec.equals("min"))
+            return new ResultAggregator(Kind.MIN, 0);
+        if (spec.equals("max"))
+            return new ResultAggregator(Kind.MAX, 0);
+        if (spec.equals("distinct"))
+            return new ResultAggregator(Kind.DISTINCT, 0);
+        if (spec.startsWith("topk:")) {
+            int k;
+            try {
+                k = Integer.parseInt(spec.substring(5));
+            } catch (NumberFormatException e) {
+                k = 0;
+            }
+            if (k < 1)
+                throw new IllegalArgumentException("topk:N should have N of 1 or more.");
+            return new ResultAggregator(Kind.TOPK, k);
+        }
+        throw new IllegalArgumentException("unknown aggregation " + spec
+                + ". count, sum, min, max, topk:N or distinct.");
+    }
+
+    void add(DiscoveryCache.Result result) {
+        responses++;
+        if (result.failed) {
+            failed++;
+            return;
+        }
+        Object value = result.value;
+        if (kind == Kind.COUNT)
+            return;
+        if (kind == Kind.DISTINCT) {
+            if (distinct.contains(value))
+                return;
+            if (distinct.size() < MAX_DISTINCT) {
+                distinct.add(value);
+            } else {
+                distinctOverflow = true;
+            }
+            return;
+        }
+
+        double number;
+        if (value instanceof Number) {
+            number = ((Number) value).doubleValue();
+        } else {
+            try {
+                number = Double.parseDouble(String.valueOf(value));
+            } catch (NumberFormatException e) {
+                skipped++;
+                return;
+            }
+        }
+        count++;
+        if (kind == Kind.SUM) {
+            sum += number;
+            if (integral && (value instanceof Long || value instanceof Integer
+                    || value instanceof Short || value instanceof Byte)) {
+                longSum += ((Number) value).longValue();
+            } else {
+                integral = false;
+            }
+        } else if (kind == Kind.MIN) {
+            if (number < min) {
+                min = number;
+                minValue = value;
+            }
+        } else if (kind == Kind.MAX) {
+            if (max < number) {
+                max = number;
+                maxValue = value;
+            }
+        } else if (kind == Kind.TOPK) {
+            if (top.size() < k) {
+                top.add(new Ranked(number, value, result.agentId));
+            } else if (top.peek().number < number) {
+                top.poll();
+                top.add(new Ranked(number, value, result.agentId));
+            }
+        }
+    }
+
+    /**
+     * Append the aggregate.
+     */
+    void report(StringBuilder record) {
+        record.append(" aggregate: ").append(kind == Kind.TOPK ? "topk:" + k : kind.name().toLowerCase())
+                .append(", responses: ").append(responses)
+                .append(", failed: ").append(failed);
+        if (kind != Kind.COUNT && kind != Kind.DISTINCT)
+            record.append(", skipped: ").append(skipped);
+        record.append('\n');
+
+        switch (kind) {
+        case COUNT:
+            record.append(" count: ").append(responses - failed).append('\n');
+            break;
+        case SUM:
+            record.append(" sum: ").append(integral ? String.valueOf(longSum) : String.valueOf(sum))
+                    .append(", count: ").append(count)
+                    .append(", mean: ").append(count == 0 ? "-" : String.format("%.3f", sum / count))
+                    .append('\n');
+            break;
+        case MIN:
+            record.append(" min: ").append(count == 0 ? "-" : minValue).append('\n');
+            break;
+        case MAX:
+            record.append(" max: ").append(count == 0 ? "-" : maxValue).append('\n');
+            break;
+        case TOPK:
+            List<Ranked> ranked = new ArrayList<Ranked>(top);
+            Collections.sort(ranked, Collections.reverseOrder(ASCENDING));
+            record.append(" top ").append(ranked.size()).append(":\n");
+            for (int i = 0; i < ranked.size(); i++) {
+                Ranked r = ranked.get(i);
+                record.append("  ").append(i + 1).append(". value: ").append(r.value)
+                        .append(", agentId: ").append(r.agentId).append('\n');
+            }
+            break;
+        case DISTINCT:
+            record.append(" distinct: ").append(distinct.size())
+                    .append(distinctOverflow ? " or more (only " + MAX_DISTINCT + " kept)" : "")
+                    .append('\n');
+            int shown = 0;
+            for (Object value : distinct) {
+                if (MAX_DISTINCT_SHOWN <= shown++) {
+                    record.append("  ...\n");
+                    break;
+                }
+                record.append("  ").append(value).append('\n');
+            }
+            break;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs commands in a script file through a ShellCommandProcessor.
+ * 
+ * The file is read line by line. Empty lines and lines beginning with '#'
+ * are skipped, and a line may have several commands separated by ';'
+ * outside of double quotes. After all, a summary of throughput, errors and
+ * latencies per command is printed.
+ */
+final class ScriptRunner {
+    private static final String UNKNOWN_COMMAND = "<unknown>";
+
+    private final ShellCommandProcessor shell;
+
+    private final Map<String, CommandStat> stats = new TreeMap<String, CommandStat>();
+    private long commands = 0;
+    private long errors = 0;
+
+    ScriptRunner(ShellCommandProcessor shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * Run a script file and print its summary.
+     * 
+     * @param file
+     *            a script file.
+     * @return false if the script ended with bye, otherwise true.
+     * @throws IOException
+     *             if the file can not be read.
+     */
+    boolean run(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        boolean cont = true;
+        long stime = System.nanoTime();
+        try {
+            List<String> lineCommands = new ArrayList<String>();
+            String line;
+            while (cont && (line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.length() == 0 || trimmed.charAt(0) == '#')
+                    continue;
+                lineCommands.clear();
+                splitCommands(trimmed, lineCommands);
+                for (String command : lineCommands) {
+                    if (!runCommand(command)) {
+                        cont = false;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        printSummary(file, System.nanoTime() - stime);
+        return cont;
+    }
+
+    /**
+     * @return number of commands which reported errors.
+     */
+    long getErrors() {
+        return errors;
+    }
+
+    private boolean runCommand(String command) {
+        long stime = System.nanoTime();
+        boolean cont = shell.processCommand(command);
+        long elapsed = System.nanoTime() - stime;
+
+        String name = shell.getLastCommandName();
+        if (name == null)
+            name = UNKNOWN_COMMAND;
+        CommandStat stat = stats.get(name);
+        if (stat == null) {
+            stat = new CommandStat();
+            stats.put(name, stat);
+        }
+        stat.latency.record(elapsed);
+        commands++;
+        if (shell.isLastCommandFailed()) {
+            stat.errors++;
+            errors++;
+        }
+        return cont;
+    }
+
+    private void printSummary(File file, long elapsed) {
+        PrintStream out = shell.getOut();
+        double sec = elapsed / 1000000000.0;
+        out.println(" *** Script summary : " + file.getPath() + " ***");
+        out.println(" commands: " + commands + ", errors: " + errors
+                + ", time (msec): " + LatencyHistogram.toMillis(elapsed)
+                + ", commands/sec: " + String.format("%.1f", sec > 0 ? commands / sec : 0.0));
+        out.println(String.format(" %-20s %10s %10s %12s %12s",
+                "command", "count", "errors", "p50(msec)", "p99(msec)"));
+        for (Map.Entry<String, CommandStat> entry : stats.entrySet()) {
+            CommandStat stat = entry.getValue();
+            out.println(String.format(" %-20s %10d %10d %12s %12s",
+                    entry.getKey(), stat.latency.getCount(), stat.errors,
+                    LatencyHistogram.toMillis(stat.latency.getValueAtPercentile(50)),
+                    LatencyHistogram.toMillis(stat.latency.getValueAtPercentile(99))));
+        }
+    }
+
+    /**
+     * Split a line into commands by ';' outside of double quotes.
+     * 
+     * @param line
+     *            a line.
+     * @param commands
+     *            non-empty commands are added.
+     */
+    static void splitCommands(String line, List<String> commands) {
+        boolean quoted = false;
+        int begin = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                i++;
+            } else if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ';' && !quoted) {
+                addCommand(line.substring(begin, i), commands);
+                begin = i + 1;
+            }
+        }
+        addCommand(line.substring(begin), commands);
+    }
+
+    private static void addCommand(String command, List<String> commands) {
+        command = command.trim();
+        if (command.length() != 0)
+            commands.add(command);
+    }
+
+    private static class CommandStat {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long errors = 0;
+    }
+}
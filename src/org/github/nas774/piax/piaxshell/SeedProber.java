@@ -0,0 +1,193 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Probes seed peers by TCP connects in parallel, and ranks them by connect
+ * latency.
+ *
+ * A seed which refuses or does not accept a connection within the timeout
+ * is dead. Seeds which are this process itself are not probed, because
+ * they are not listening yet, and are ranked after live seeds.
+ */
+final class SeedProber {
+    private static final Logger logger = LoggerFactory.getLogger(SeedProber.class);
+
+    private static final int MAX_THREADS = 16;
+
+    /**
+     * A result of a probe.
+     */
+    static final class Probe {
+        final InetSocketAddress address;
+        /** connect latency in nanosec, or -1 if dead. */
+        final long nanos;
+        /** true if the seed is this process. */
+        final boolean self;
+        /** reason of death, or null. */
+        final String error;
+
+        Probe(InetSocketAddress address, long nanos, boolean self, String error) {
+            this.address = address;
+            this.nanos = nanos;
+            this.self = self;
+            this.error = error;
+        }
+
+        boolean isAlive() {
+            return 0 <= nanos || self;
+        }
+    }
+
+    private final int timeout;
+
+    /**
+     * @param timeout
+     *            msec to wait for a connect.
+     */
+    SeedProber(int timeout) {
+        if (timeout < 1)
+            throw new IllegalArgumentException("timeout should be 1 or more.");
+        this.timeout = timeout;
+    }
+
+    /**
+     * Parse seeds.
+     *
+     * @param spec
+     *            host:port separated by ',' or spaces.
+     * @return seeds in the order given, without duplicates.
+     * @throws IllegalArgumentException
+     *             if a seed is not host:port.
+     */
+    static List<InetSocketAddress> parse(String spec) {
+        List<InetSocketAddress> seeds = new ArrayList<InetSocketAddress>();
+        for (String s : spec.trim().split("[,\\s]+")) {
+            if (s.equals(""))
+                continue;
+            int colon = s.lastIndexOf(':');
+            if (colon <= 0 || colon == s.length() - 1)
+                throw new IllegalArgumentException("seed should be host:port. : " + s);
+            int port;
+            try {
+                port = Integer.parseInt(s.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("seed should be host:port. : " + s);
+            }
+            if (port < 1 || 65535 < port)
+                throw new IllegalArgumentException("port of seed is out of range. : " + s);
+            InetSocketAddress address = new InetSocketAddress(s.substring(0, colon), port);
+            if (!seeds.contains(address))
+                seeds.add(address);
+        }
+        return seeds;
+    }
+
+    /**
+     * Probe seeds in parallel.
+     *
+     * @param seeds
+     *            seeds to probe.
+     * @param selves
+     *            addresses of this process.
+     * @return probes of all seeds. Live seeds come first by latency, then
+     *         seeds of this process, then dead seeds.
+     */
+    List<Probe> probe(List<InetSocketAddress> seeds, Collection<InetSocketAddress> selves) {
+        List<Probe> probes = new ArrayList<Probe>();
+        List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+        for (InetSocketAddress seed : seeds) {
+            if (selves.contains(seed)) {
+                probes.add(new Probe(seed, -1, true, null));
+            } else {
+                targets.add(seed);
+            }
+        }
+
+        if (!targets.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(MAX_THREADS, targets.size()), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread th = new Thread(r, "SeedProber-" + count.incrementAndGet());
+                            th.setDaemon(true);
+                            return th;
+                        }
+                    });
+            try {
+                List<Future<Probe>> futures = new ArrayList<Future<Probe>>();
+                for (final InetSocketAddress seed : targets) {
+                    futures.add(executor.submit(new Callable<Probe>() {
+                        public Probe call() {
+                            return connect(seed);
+                        }
+                    }));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        // Each connect times out by itself.
+                        probes.add(futures.get(i).get());
+                    } catch (Exception e) {
+                        probes.add(new Probe(targets.get(i), -1, false, e.toString()));
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        Collections.sort(probes, new Comparator<Probe>() {
+            public int compare(Probe a, Probe b) {
+                int ra = rank(a);
+                int rb = rank(b);
+                if (ra != rb)
+                    return ra - rb;
+                return a.nanos < b.nanos ? -1 : (a.nanos == b.nanos ? 0 : 1);
+            }
+        });
+        return probes;
+    }
+
+    // 0 for live seeds, 1 for this process, 2 for dead seeds.
+    private static int rank(Probe probe) {
+        if (probe.self)
+            return 1;
+        return 0 <= probe.nanos ? 0 : 2;
+    }
+
+    private Probe connect(InetSocketAddress seed) {
+        if (seed.isUnresolved())
+            return new Probe(seed, -1, false, "unknown host");
+        Socket socket = new Socket();
+        long start = System.nanoTime();
+        try {
+            socket.connect(seed, timeout);
+            return new Probe(seed, System.nanoTime() - start, false, null);
+        } catch (IOException e) {
+            return new Probe(seed, -1, false, e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Ignore an IOException of close.");
+            }
+        }
+    }
+}
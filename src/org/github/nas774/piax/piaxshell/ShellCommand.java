@@ -0,0 +1,46 @@
+package org.github.nas774.piax.piaxshell;
+
+/**
+ * A command of PIAXShell.
+ * 
+ * Commands other than built-in ones can be added by jar files on the
+ * class path. List implementation classes in
+ * META-INF/services/org.github.nas774.piax.piaxshell.ShellCommand of the jar.
+ * Implementations need a public no-arg constructor.
+ */
+public interface ShellCommand {
+    /**
+     * @return command names. The first one is the command name and the
+     *         others are aliases.
+     */
+    String[] getNames();
+
+    /**
+     * @return minimum number of tokens including the command name.
+     */
+    int getMinArgs();
+
+    /**
+     * @return maximum number of tokens including the command name, or -1 if
+     *         unlimited.
+     */
+    int getMaxArgs();
+
+    /**
+     * @return usage shown in help message, or null.
+     */
+    String getUsage();
+
+    /**
+     * Execute this command. The number of tokens is already checked.
+     * 
+     * @param shell
+     *            the shell which runs this command.
+     * @param args
+     *            tokens of the command line. Valid only during this call.
+     * @return false if the shell should exit, otherwise true.
+     * @throws Exception
+     *             errors are logged by the shell.
+     */
+    boolean execute(ShellCommandProcessor shell, CommandLine args) throws Exception;
+}
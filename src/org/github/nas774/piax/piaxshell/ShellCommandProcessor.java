@@ -3,15 +3,17 @@ package org.github.nas774.piax.piaxshell;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.piax.agent.AgentHome;
 import org.piax.agent.AgentId;
@@ -26,24 +28,775 @@ import org.slf4j.LoggerFactory;
 public class ShellCommandProcessor {
     private static final Logger logger = LoggerFactory.getLogger(ShellCommandProcessor.class);
 
-    private AgentPeer peer = null;
-    private ExecutorService asyncReturnExecutor = Executors.newCachedThreadPool();
+    // Peers of the process. Commands operate the current one.
+    private final List<ShellPeer> peers;
+    private volatile ShellPeer current = null;
+    private volatile AgentPeer peer = null;
+    private final AsyncReturnExecutor asyncReturnExecutor;
+    private final CommandTokenizer tokenizer = new CommandTokenizer();
+    private final CommandRegistry commands = new CommandRegistry();
+    private final LatencyStats stats;
+    private final PrintStream out;
+    // Output stage of the console, or null to print records to out directly.
+    private final ConsoleOutput console;
+    // true if this is a session of CommandServer.
+    private final boolean session;
+
+    // Executor of processors created by the public constructor. Shared so
+    // that each of them does not start its own pollers.
+    private static AsyncReturnExecutor defaultAsyncReturnExecutor = null;
+
+    private static synchronized AsyncReturnExecutor defaultAsyncReturnExecutor() {
+        if (defaultAsyncReturnExecutor == null) {
+            defaultAsyncReturnExecutor = new AsyncReturnExecutor();
+        }
+        return defaultAsyncReturnExecutor;
+    }
 
     public ShellCommandProcessor(AgentPeer peer) {
-        if (peer == null)
-            throw new IllegalArgumentException("An argument peer is null.");
+        this(Collections.singletonList(new ShellPeer(0, peer)), defaultAsyncReturnExecutor(),
+                new LatencyStats(), System.out, null, false, null);
+    }
+
+    /**
+     * @param peer
+     *            the peer this shell operates.
+     * @param asyncReturnExecutor
+     *            executor which handles returns of async calls.
+     */
+    ShellCommandProcessor(AgentPeer peer, AsyncReturnExecutor asyncReturnExecutor) {
+        this(Collections.singletonList(new ShellPeer(0, peer)), asyncReturnExecutor,
+                new LatencyStats(), System.out, null, false, null);
+    }
+
+    /**
+     * @param peers
+     *            peers of the process. The shell operates the first one at
+     *            first, and peer command switches it.
+     * @param asyncReturnExecutor
+     *            executor which handles returns of async calls.
+     * @param console
+     *            output stage all output of this shell goes through.
+     */
+    ShellCommandProcessor(List<ShellPeer> peers, AsyncReturnExecutor asyncReturnExecutor,
+            ConsoleOutput console) {
+        this(peers, asyncReturnExecutor, new LatencyStats(), console.getStream(), console, false,
+                null);
+    }
+
+    /**
+     * Create a processor of another session of the same peers. The executor
+     * of async returns, latency stats and extension commands are shared with
+     * the parent. The session operates the first peer at first. bye command
+     * of the session ends only the session.
+     * 
+     * @param parent
+     *            a processor of the peer.
+     * @param out
+     *            output of this session.
+     */
+    ShellCommandProcessor(ShellCommandProcessor parent, PrintStream out) {
+        this(parent.peers, parent.asyncReturnExecutor, parent.stats, out, null, true,
+                parent.commands.getExtensions());
+    }
+
+    private ShellCommandProcessor(List<ShellPeer> peers, AsyncReturnExecutor asyncReturnExecutor,
+            LatencyStats stats, PrintStream out, ConsoleOutput console, boolean session,
+            List<ShellCommand> extensions) {
+        if (peers.isEmpty())
+            throw new IllegalArgumentException("An argument peers is empty.");
+        for (ShellPeer p : peers) {
+            if (p.peer == null)
+                throw new IllegalArgumentException("An argument peer is null.");
+        }
+
+        this.peers = peers;
+        use(0);
+        this.asyncReturnExecutor = asyncReturnExecutor;
+        this.stats = stats;
+        this.out = out;
+        this.console = console;
+        this.session = session;
+
+        registerBuiltinCommands();
+        if (extensions == null) {
+            commands.loadExtensions(Thread.currentThread().getContextClassLoader());
+        } else {
+            // Sessions do not scan the class path again.
+            commands.addExtensions(extensions);
+        }
+    }
+
+    /**
+     * @return the peer this shell operates.
+     */
+    public AgentPeer getPeer() {
+        return peer;
+    }
+
+    /**
+     * @return the stream commands of this shell print to.
+     */
+    public PrintStream getOut() {
+        return out;
+    }
+
+    /**
+     * @return the output stage of the console, or null if not used.
+     */
+    ConsoleOutput getConsole() {
+        return console;
+    }
+
+    LatencyStats getStats() {
+        return stats;
+    }
+
+    AsyncReturnExecutor getAsyncReturnExecutor() {
+        return asyncReturnExecutor;
+    }
+
+    /**
+     * @return peers of the process.
+     */
+    List<ShellPeer> getPeers() {
+        return peers;
+    }
+
+    /**
+     * Switch the peer commands operate. Each peer has its own agent index,
+     * so agent numbers are kept while operating other peers.
+     * 
+     * @param no
+     *            index of the peer.
+     */
+    private void use(int no) {
+        current = peers.get(no);
+        peer = current.peer;
+        agents = current.agents;
+    }
+
+    private static final int DEFAULT_AGENTS_LIMIT = 100;
+    private static final int DEFAULT_CALLALL_PARALLEL = 64;
+    private static final int DEFAULT_CALLALL_SLOWEST = 5;
+    private static final int MAX_CALLALL_FAILURES = 10;
+    // msec to wait each result of a discovery call.
+    private static final long DISCOVERY_WAIT = 3000;
+    private static final long DISCOVERY_WAIT_NANOS = DISCOVERY_WAIT * 1000000L;
+
+    private static final int CALL = 0;
+    private static final int CALL_ONEWAY = 1;
+    private static final int CALL_ASYNC = 2;
+
+    private void registerBuiltinCommands() {
+        commands.register(new AbstractShellCommand(1, 1, null, "info", "i") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                info();
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(1, -1, null, "agents", "ag") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                CommandOptions options;
+                int from;
+                int limit;
+                try {
+                    options = CommandOptions.parse(args, 1,
+                            new String[] { "name", "from", "limit" },
+                            new String[] { "sleeping", "refresh" });
+                    from = options.getInt("from", 0);
+                    limit = options.getInt("limit", DEFAULT_AGENTS_LIMIT);
+                } catch (IllegalArgumentException e) {
+                    // Includes NumberFormatException.
+                    printError(e.getMessage());
+                    return true;
+                }
+                if (options.next() < args.size()) {
+                    lastCommandFailed = true;
+                    printHelp();
+                    return true;
+                }
+                agents(options.get("name", null), options.has("sleeping"), from, limit,
+                        options.has("refresh"));
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(1, 2, null, "peer") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                if (args.size() == 1) {
+                    peers();
+                    return true;
+                }
+                int no;
+                try {
+                    no = Integer.parseInt(args.get(1));
+                } catch (NumberFormatException e) {
+                    printError("peer number should be number.");
+                    return true;
+                }
+                if (no < 0 || peers.size() <= no) {
+                    printError("no such peer.");
+                    return true;
+                }
+                use(no);
+                out.println(" peer " + no + ": " + peer.getPeerName());
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(1, 1, null, "join") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                join();
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(1, 1, null, "leave") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                leave();
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(2, 4, null, "mkagent", "mk") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                if (args.size() == 2) {
+                    mkagent(args.get(1));
+                } else if (args.size() == 3) {
+                    mkagent(args.get(1), args.get(2));
+                }
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(2, 2, null, "dup") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                dup(Integer.parseInt(args.get(1)));
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(2, 2, null, "sleep", "sl") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                sleep(Integer.parseInt(args.get(1)));
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(2, 2, null, "wake", "wa") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                wake(Integer.parseInt(args.get(1)));
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(2, 2, null, "fin") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                fin(Integer.parseInt(args.get(1)));
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(3, -1, null, "discover", "dc") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                CommandOptions options = parseDiscoveryOptions(args, 2);
+                if (options == null)
+                    return true;
+                int i = options.next();
+                discover(args.get(i), args.get(i + 1), options.getMillis("deadline", 0),
+                        options.getInt("first", 0), options.has("nocache"), aggregatorOf(options),
+                        args.args(i + 2));
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(3, -1, null, "discoveroneway", "dco") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                discoverOneway(args.get(1), args.get(2), args.args(3));
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(3, -1, null, "discoverasync", "dca") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                discoverAsync(args.get(1), args.get(2), args.args(3));
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(6, -1, null, "discoverlocation", "dcl") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                CommandOptions options = parseDiscoveryOptions(args, 5);
+                if (options == null)
+                    return true;
+                int i = options.next();
+                double lng = Double.parseDouble(args.get(i));
+                double lat = Double.parseDouble(args.get(i + 1));
+                double w = Double.parseDouble(args.get(i + 2));
+                double h = Double.parseDouble(args.get(i + 3));
+                discoverLocation(lng, lat, w, h, args.get(i + 4), options.getMillis("deadline", 0),
+                        options.getInt("first", 0), options.has("nocache"), aggregatorOf(options),
+                        args.args(i + 5));
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(3, -1, null, "call", "c") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                dispatchCall(CALL, args);
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(3, -1, null, "calloneway", "co") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                dispatchCall(CALL_ONEWAY, args);
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(3, -1, null, "callasync", "ca") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                dispatchCall(CALL_ASYNC, args);
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(3, -1, null, "callall") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                callall(args);
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(3, -1, null, "bench") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) throws Exception {
+                bench(args);
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(1, 2, null, "stats") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                if (args.size() == 1) {
+                    stats();
+                } else if (args.get(1).equals("reset")) {
+                    stats.reset();
+                } else {
+                    lastCommandFailed = true;
+                    printHelp();
+                }
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(1, 1, null, "async") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                async();
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(2, 2, null, "script") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                return script(new File(args.get(1)));
+            }
+        });
+        commands.register(new AbstractShellCommand(1, -1, null, "help", "?") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                printHelp();
+                return true;
+            }
+        });
+        commands.register(new AbstractShellCommand(1, -1, null, "bye") {
+            public boolean execute(ShellCommandProcessor shell, CommandLine args) {
+                if (!session && peer.isOnline()) {
+                    leave();
+                }
+                return false;
+            }
+        });
+    }
 
-        this.peer = peer;
+    /**
+     * Call an agent method by the target form of call commands.
+     * 
+     * @param calltype
+     *            CALL, CALL_ONEWAY or CALL_ASYNC.
+     * @param args
+     *            tokens of call commands.
+     */
+    private void dispatchCall(int calltype, CommandLine args) {
+        CallTarget target = resolveTarget(args, 1);
+        if (target == null) {
+            return;
+        }
+        String method = args.get(target.next);
+        Object[] cargs = args.args(target.next + 1);
+        if (calltype == CALL) {
+            call(target.pid, target.agId, method, cargs);
+        } else if (calltype == CALL_ONEWAY) {
+            callOneway(target.pid, target.agId, method, cargs);
+        } else if (calltype == CALL_ASYNC) {
+            callAsync(target.pid, target.agId, method, cargs);
+        }
+    }
+
+    /**
+     * An agent to be called.
+     */
+    static class CallTarget {
+        /** peer of the agent, or null if local. */
+        final PeerId pid;
+        final AgentId agId;
+        /** index of the token after the target. */
+        final int next;
+
+        CallTarget(PeerId pid, AgentId agId, int next) {
+            this.pid = pid;
+            this.agId = agId;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Find a local agent by name in the index. Prints an error if not found
+     * or several agents have the name.
+     * 
+     * @return ID of the agent, or null.
+     */
+    private AgentId resolveName(String name) {
+        List<AgentIndex.Entry> entries = agents.getByName(name);
+        if (entries.isEmpty()) {
+            printError("no agent is named " + name + ".");
+            return null;
+        }
+        if (1 < entries.size()) {
+            printError(entries.size() + " agents are named " + name + ". use agent_NO.");
+            return null;
+        }
+        return entries.get(0).id;
+    }
+
+    /**
+     * Resolve a call target given as agent_NO, name:agent_name, aid:agent_ID
+     * or pid:peer_ID aid:agent_ID, followed by a method name.
+     * Prints an error or help if the target is invalid.
+     * 
+     * @param args
+     *            tokens of a command.
+     * @param index
+     *            index of the target.
+     * @return a target, or null if invalid.
+     */
+    private CallTarget resolveTarget(CommandLine args, int index) {
+        String token = args.get(index);
+        int agno = -1;
+        try {
+            agno = Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+        }
+        if (agno != -1) {
+            AgentIndex.Entry entry = agents.get(agno);
+            if (entry == null) {
+                printError("invalid agent NO.");
+                return null;
+            }
+            if (index + 1 < args.size()) {
+                return new CallTarget(null, entry.id, index + 1);
+            }
+        } else if (token.toLowerCase().startsWith("name:")) {
+            if (index + 1 < args.size()) {
+                AgentId agId = resolveName(token.substring(5));
+                if (agId == null) {
+                    return null;
+                }
+                return new CallTarget(null, agId, index + 1);
+            }
+        } else if (token.toLowerCase().startsWith("aid:")) {
+            if (index + 1 < args.size()) {
+                return new CallTarget(null, new AgentId(token.substring(4)), index + 1);
+            }
+        } else if (index + 2 < args.size() && token.toLowerCase().startsWith("pid:")
+                && args.get(index + 1).toLowerCase().startsWith("aid:")) {
+            return new CallTarget(new PeerId(token.substring(4)),
+                    new AgentId(args.get(index + 1).substring(4)), index + 2);
+        }
+        lastCommandFailed = true;
+        printHelp();
+        return null;
+    }
+
+    /**
+     * Call a method of local agents selected by all, name:pattern or
+     * range:NO-NO concurrently and print a summary of the results.
+     * 
+     * @param args
+     *            tokens of callall command.
+     */
+    private void callall(CommandLine args) {
+        CommandOptions options;
+        int parallel;
+        int slowest;
+        long timeout;
+        try {
+            options = CommandOptions.parse(args, 1,
+                    new String[] { "parallel", "slowest", "timeout" }, new String[] { "values" });
+            parallel = options.getInt("parallel", DEFAULT_CALLALL_PARALLEL);
+            slowest = options.getInt("slowest", DEFAULT_CALLALL_SLOWEST);
+            timeout = options.getMillis("timeout", 0);
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException.
+            printError(e.getMessage());
+            return;
+        }
+        if (parallel < 1 || slowest < 0 || timeout < 0) {
+            printError("parallel should be 1 or more, slowest and timeout 0 or more.");
+            return;
+        }
+        int i = options.next();
+        if (args.size() < i + 2) {
+            lastCommandFailed = true;
+            printHelp();
+            return;
+        }
+
+        List<AgentIndex.Entry> targets = new ArrayList<AgentIndex.Entry>();
+        String selector = args.get(i);
+        if (selector.equals("all")) {
+            agents.list(0, null, false, Integer.MAX_VALUE, targets);
+        } else if (selector.toLowerCase().startsWith("name:")) {
+            agents.list(0, selector.substring(5), false, Integer.MAX_VALUE, targets);
+        } else if (selector.toLowerCase().startsWith("range:")) {
+            String range = selector.substring(6);
+            int hyphen = range.indexOf('-');
+            int from;
+            int to;
+            try {
+                from = Integer.parseInt(hyphen < 0 ? range : range.substring(0, hyphen));
+                to = hyphen < 0 ? from : Integer.parseInt(range.substring(hyphen + 1));
+            } catch (NumberFormatException e) {
+                printError("range should be NO-NO.");
+                return;
+            }
+            agents.list(from, null, false, Integer.MAX_VALUE, targets);
+            while (!targets.isEmpty() && to < targets.get(targets.size() - 1).no) {
+                targets.remove(targets.size() - 1);
+            }
+        } else {
+            lastCommandFailed = true;
+            printHelp();
+            return;
+        }
+        if (targets.isEmpty()) {
+            printError("no agent is selected.");
+            return;
+        }
+
+        String method = args.get(i + 1);
+        FanOutCall call = new FanOutCall(peer.getHome(), targets, method, args.args(i + 2));
+        call.run(parallel, timeout);
+
+        LatencyHistogram latency = call.getLatency();
+        long elapsed = call.getElapsedNanos();
+        double sec = elapsed / 1000000000.0;
+        stats.histogram("callall:" + method).add(latency);
+        out.println(" callall: " + method + ", agents: " + targets.size()
+                + ", parallel: " + parallel);
+        out.println(" succeeded: " + call.getSucceeded() + ", failed: " + call.getFailed()
+                + " (timed out: " + call.getTimedOut() + ")"
+                + ", time (msec): " + LatencyHistogram.toMillis(elapsed)
+                + ", calls/sec: " + String.format("%.1f", sec > 0 ? targets.size() / sec : 0.0));
+        if (0 < latency.getCount()) {
+            out.println(" latency (msec) min: " + LatencyHistogram.toMillis(latency.getMin())
+                    + ", p50: " + LatencyHistogram.toMillis(latency.getValueAtPercentile(50))
+                    + ", p90: " + LatencyHistogram.toMillis(latency.getValueAtPercentile(90))
+                    + ", p99: " + LatencyHistogram.toMillis(latency.getValueAtPercentile(99))
+                    + ", max: " + LatencyHistogram.toMillis(latency.getMax()));
+        }
+        List<FanOutCall.Result> slow = call.getSlowest(slowest);
+        if (!slow.isEmpty()) {
+            out.println(" slowest:");
+            for (FanOutCall.Result result : slow) {
+                out.println("  " + result.agent.no + ". name: " + result.agent.name
+                        + ", time (msec): " + LatencyHistogram.toMillis(result.nanos)
+                        + (result.error != null ? " <failed>" : ""));
+            }
+        }
+        List<FanOutCall.Result> failures = call.getFailures();
+        if (!failures.isEmpty()) {
+            lastCommandFailed = true;
+            out.println(" failures:");
+            for (int j = 0; j < failures.size() && j < MAX_CALLALL_FAILURES; j++) {
+                FanOutCall.Result result = failures.get(j);
+                out.println("  " + result.agent.no + ". name: " + result.agent.name
+                        + ", error: " + result.error);
+            }
+            if (MAX_CALLALL_FAILURES < failures.size()) {
+                out.println("  ... " + (failures.size() - MAX_CALLALL_FAILURES) + " more.");
+            }
+        }
+        if (options.has("values")) {
+            List<Map.Entry<String, Integer>> values =
+                    new ArrayList<Map.Entry<String, Integer>>(call.getValues().entrySet());
+            Collections.sort(values, new Comparator<Map.Entry<String, Integer>>() {
+                public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                    return b.getValue().compareTo(a.getValue());
+                }
+            });
+            out.println(" values:");
+            for (Map.Entry<String, Integer> value : values) {
+                out.println(String.format("  %8d  %s", value.getValue(), value.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Parse --deadline and --first options of discovery commands.
+     * Prints an error or help if the options are invalid.
+     * 
+     * @param args
+     *            tokens of a discovery command.
+     * @param required
+     *            number of tokens required after options.
+     * @return options, or null if invalid.
+     */
+    private CommandOptions parseDiscoveryOptions(CommandLine args, int required) {
+        CommandOptions options;
+        try {
+            options = CommandOptions.parse(args, 1,
+                    new String[] { "deadline", "first", "agg" }, new String[] { "nocache" });
+            if (options.getMillis("deadline", 0) < 0 || options.getInt("first", 0) < 0) {
+                printError("deadline and first should be 0 or more.");
+                return null;
+            }
+            // Check the spec here. Commands create an aggregator by aggregatorOf.
+            aggregatorOf(options);
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException.
+            printError(e.getMessage());
+            return null;
+        }
+        if (args.size() < options.next() + required) {
+            lastCommandFailed = true;
+            printHelp();
+            return null;
+        }
+        return options;
+    }
+
+    /**
+     * @return a new aggregator of --agg, or null if not given.
+     */
+    private static ResultAggregator aggregatorOf(CommandOptions options) {
+        String spec = options.get("agg", null);
+        return spec == null ? null : ResultAggregator.of(spec);
+    }
+
+    /**
+     * Run a load of calls and print throughput and latency distribution.
+     * 
+     * @param args
+     *            tokens of bench command.
+     */
+    private void bench(CommandLine args) throws InterruptedException {
+        CommandOptions options;
+        CallBenchmark.Style style;
+        int count;
+        int concurrency;
+        try {
+            options = CommandOptions.parse(args, 1,
+                    new String[] { "count", "concurrency", "style" }, null);
+            style = CallBenchmark.Style.of(options.get("style", "call"));
+            count = options.getInt("count", 1000);
+            concurrency = options.getInt("concurrency", 1);
+        } catch (IllegalArgumentException e) {
+            // Includes NumberFormatException.
+            printError(e.getMessage());
+            return;
+        }
+        if (count < 1 || concurrency < 1) {
+            printError("count and concurrency should be 1 or more.");
+            return;
+        }
+        if (CallBenchmark.MAX_CONCURRENCY < concurrency) {
+            printError("concurrency should be " + CallBenchmark.MAX_CONCURRENCY + " or less.");
+            return;
+        }
+        if (args.size() <= options.next()) {
+            lastCommandFailed = true;
+            printHelp();
+            return;
+        }
+        CallTarget target = resolveTarget(args, options.next());
+        if (target == null) {
+            return;
+        }
+        String method = args.get(target.next);
+        CallBenchmark bench = new CallBenchmark(peer.getHome(), target.pid,
+                target.agId, method, args.args(target.next + 1), style);
+        bench.run(count, concurrency);
+
+        LatencyHistogram latency = bench.getLatency();
+        long elapsed = bench.getElapsedNanos();
+        double sec = elapsed / 1000000000.0;
+        out.println(" bench: " + style.name().toLowerCase() + " " + method
+                + ", count: " + count + ", concurrency: " + concurrency);
+        out.println(" completed: " + latency.getCount() + ", errors: " + bench.getErrors()
+                + ", time (msec): " + LatencyHistogram.toMillis(elapsed)
+                + ", calls/sec: " + String.format("%.1f", sec > 0 ? count / sec : 0.0));
+        out.println(" latency (msec) min: " + LatencyHistogram.toMillis(latency.getMin())
+                + ", p50: " + LatencyHistogram.toMillis(latency.getValueAtPercentile(50))
+                + ", p90: " + LatencyHistogram.toMillis(latency.getValueAtPercentile(90))
+                + ", p99: " + LatencyHistogram.toMillis(latency.getValueAtPercentile(99))
+                + ", p999: " + LatencyHistogram.toMillis(latency.getValueAtPercentile(99.9))
+                + ", max: " + LatencyHistogram.toMillis(latency.getMax()));
+        stats.histogram("bench:" + method).add(latency);
+        if (0 < bench.getErrors()) {
+            lastCommandFailed = true;
+        }
+    }
+
+    /**
+     * Print state of the executor which handles returns of async calls.
+     */
+    private void async() {
+        AsyncReturnExecutor e = asyncReturnExecutor;
+        out.println(" policy: " + e.getPolicy().name().toLowerCase()
+                + ", poller threads: " + e.getThreads() + ", max in flight: " + e.getMaxInFlight()
+                + ", timeout (msec): " + e.getTimeout());
+        out.println(" in flight: " + e.getInFlight() + ", peak: " + e.getPeakInFlight()
+                + ", queued: " + e.getQueued());
+        out.println(" completed: " + e.getCompleted() + ", rejected: " + e.getRejected()
+                + ", caller runs: " + e.getCallerRuns() + ", expired: " + e.getExpired());
+    }
+
+    /**
+     * Print latency distribution of commands and methods called so far.
+     */
+    private void stats() {
+        out.println(String.format(" %-24s %8s %9s %9s %9s %9s %9s %9s",
+                "name", "count", "mean", "min", "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, LatencyHistogram> e : stats.snapshot().entrySet()) {
+            LatencyHistogram h = e.getValue();
+            if (h.getCount() == 0)
+                continue;
+            out.println(String.format(" %-24s %8d %9s %9s %9s %9s %9s %9s",
+                    e.getKey(), h.getCount(),
+                    LatencyHistogram.toMillis(h.getMean()),
+                    LatencyHistogram.toMillis(h.getMin()),
+                    LatencyHistogram.toMillis(h.getValueAtPercentile(50)),
+                    LatencyHistogram.toMillis(h.getValueAtPercentile(90)),
+                    LatencyHistogram.toMillis(h.getValueAtPercentile(99)),
+                    LatencyHistogram.toMillis(h.getMax())));
+        }
+        out.println("\t(msec)");
+        DiscoveryCache cache = current.discoveryCache;
+        if (cache != null) {
+            out.println(" discovery cache: entries: " + cache.size() + "/" + cache.getMaxEntries()
+                    + ", ttl (msec): " + cache.getTtl()
+                    + ", hits: " + cache.getHits()
+                    + ", coalesced: " + cache.getCoalesced()
+                    + ", misses: " + cache.getMisses()
+                    + ", evictions: " + cache.getEvictions()
+                    + ", oversized: " + cache.getOversizes()
+                    + " (max results " + cache.getMaxResults() + ")");
+        }
     }
 
     private void printHelp() {
-        System.out
+        out
                 .print(" *** PIAXShell Help ***\n"
                         + "  i)nfo           show my peer information\n"
                         + "  \n"
-                        + "  ag)ents [cat]   list agents have specific category\n"
+                        + "  ag)ents [--name pattern] [--sleeping] [--from NO] [--limit N] [--refresh]\n"
+                        + "                  list agents. pattern may have '*' and '?'.\n"
+                        + "                  --refresh reloads them from the home to show agents\n"
+                        + "                  created or destroyed out of the shell\n"
                         + "  \n"
-                        + "  join            join P2P net\n"
+                        + "  peer [NO]       list peers in this process, or switch to peer NO\n"
+                        + "  join            join P2P net. retries in background until joined\n"
                         + "  leave           leave from P2P net\n"
                         + "  \n"
                         + "  mk)agent class name [cat]\n"
@@ -56,71 +809,84 @@ public class ShellCommandProcessor {
                         + "  fin agent_NO    destroy agent indicated by agent_NO\n"
                         + "  \n"
                         + "  c)all agent_NO method arg ...\n"
+                        + "  c)all name:agent_name method arg ...\n"
                         + "  c)all aid:agent_ID method arg ...\n"
                         + "  c)all pid:peer_ID aid:agent_ID method arg ...\n"
                         + "                  call remote agent method\n"
                         + "  co,calloneway agent_NO method arg ...\n"
+                        + "  co,calloneway name:agent_name method arg ...\n"
                         + "  co,calloneway aid:agent_ID method arg ...\n"
                         + "  co,calloneway pid:peer_ID aid:agent_ID method arg ...\n"
                         + "                  callOneway remote agent method\n"
                         + "  ca,callasync agent_NO method arg ...\n"
+                        + "  ca,callasync name:agent_name method arg ...\n"
                         + "  ca,callasync aid:agent_ID method arg ...\n"
                         + "  ca,callasync pid:peer_ID aid:agent_ID method arg ...\n"
                         + "                  callAsync remote agent method\n"
+                        + "  callall [--parallel P] [--timeout T] [--slowest K] [--values]\n"
+                        + "        all|name:pattern|range:NO-NO method arg ...\n"
+                        + "                  call local agents concurrently and show summary.\n"
+                        + "                  --values shows distinct return values\n"
                         + "  \n"
-                        + "  dc,discover query method arg ...\n"
-                        + "                  discoveryCall to agents by query\n"
+                        + "  dc,discover [--deadline T] [--first N] [--nocache] [--agg A] query method arg ...\n"
+                        + "                  discoveryCall to agents by query. stop receiving\n"
+                        + "                  results after T (e.g. 500ms, 3s) or N results\n"
+                        + "                  --nocache bypasses the discovery cache. --agg prints\n"
+                        + "                  only A of results: count, sum, min, max, topk:N or\n"
+                        + "                  distinct\n"
                         + "  dco,discoveroneway query method arg ...\n"
                         + "                  discoveryCallOneway to agents by query\n"
                         + "  dca,discoverasync query method arg ...\n"
                         + "                  discoveryCallAsync to agents by query\n"
-                        + "  dcl,discoverlocation lng lat w h method arg ...\n"
-                        + "                  discoveryCall to agents in (lng, lat, w, h) area\n"
+                        + "  dcl,discoverlocation [--deadline T] [--first N] [--nocache] [--agg A]\n"
+                        + "                  lng lat w h method arg ...\n"
+                        + "                  discoveryCall to agents in (lng, lat, w, h) area.\n"
+                        + "                  options are the same as discover\n"
+                        + "  \n"
+                        + "  bench [--count N] [--concurrency C] [--style call|async|oneway]\n"
+                        + "        agent_NO|name:agent_name|aid:agent_ID|pid:peer_ID aid:agent_ID\n"
+                        + "        method arg ...\n"
+                        + "                  call agent method N times by C threads and show latency.\n"
+                        + "                  async keeps C calls in flight from one thread.\n"
+                        + "                  C is 256 or less\n"
+                        + "  \n"
+                        + "  async           show state of pending async returns\n"
+                        + "  stats [reset]   show latency of commands and called methods\n"
+                        + "  \n"
+                        + "  script file     run commands in file. ';' separates commands in a line\n"
                         + "  \n"
                         + "  ?,help          show this help message\n"
                         + "  bye             exit\n" + "\n");
-    }
-
-    static Pattern cmd_arg_divide = Pattern.compile("([a-zA-Z][\\w-]*)(\\s.+)?");
-    static Pattern arg_parse = Pattern.compile("\\s+(?:(?:\"((?:(?:\\\\\")|[^\"])*)\"?)|([^\"]\\S*))");
-    private static String[] split(String line) {
-        line = line.trim();
-        ArrayList<String> cmd_args = new ArrayList<String>();
-        Matcher m = cmd_arg_divide.matcher(line);
-        if (!m.matches())
-            return null;
-        String cmd = m.group(1);
-        String arg = m.group(2);
-
-        cmd_args.add(cmd);
-
-        if (arg == null)
-            return cmd_args.toArray(new String[cmd_args.size()]);
-
-        m = arg_parse.matcher(arg);
-        while (m.find()) {
-            for (int i=1 ;i<m.groupCount()+1;i++) {
-                if (m.group(i) != null) {
-                    cmd_args.add(m.group(i).replaceAll("\\\\", ""));
-                    break;
-                }
+        List<ShellCommand> extensions = commands.getExtensions();
+        if (!extensions.isEmpty()) {
+            out.print(" *** Extension Commands ***\n");
+            for (ShellCommand command : extensions) {
+                String usage = command.getUsage();
+                out.print(usage != null ? usage : "  " + command.getNames()[0]);
+                out.print("\n");
             }
+            out.print("\n");
         }
-        return cmd_args.toArray(new String[cmd_args.size()]);
     }
 
-    private List<AgentId> agents;
+    // Agent index of the current peer.
+    private AgentIndex agents;
 
-    long stime;
+    private static final int MAX_SCRIPT_DEPTH = 8;
+    private int scriptDepth = 0;
+
+    // Result of the last command. Accessed only by the thread runs commands.
+    private ShellCommand lastCommand = null;
+    private boolean lastCommandFailed = false;
 
     void mainLoop() {
-        agents = new ArrayList<AgentId>();
         BufferedReader reader = new BufferedReader(new InputStreamReader(
                 System.in));
 
         while (true) {
             try {
-                System.out.print("Input Command >");
+                out.print("Input Command >");
+                out.flush();
                 String input = null;
                 // countermeasure for background running with "< /dev/null".
                 while (true) {
@@ -131,258 +897,284 @@ public class ShellCommandProcessor {
                     }
                     break;
                 }
-                if (input.equals("")) {
-                    continue;
-                }
-                String[] args = split(input);
-                if (args.length == 0) {
-                    continue;
+                if (!processCommand(input)) {
+                    return;
                 }
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
 
-                stime = System.currentTimeMillis();
+    /**
+     * Parse and execute a command line.
+     * 
+     * @param input
+     *            a command line.
+     * @return false if the shell should exit, otherwise true.
+     */
+    boolean processCommand(String input) {
+        lastCommand = null;
+        lastCommandFailed = false;
+        try {
+            if (input.equals("")) {
+                return true;
+            }
+            CommandLine args = tokenizer.tokenize(input);
+            if (args == null) {
+                lastCommandFailed = true;
+                printHelp();
+                return true;
+            }
+            if (args.size() == 0) {
+                return true;
+            }
 
-                if (args[0].equals("info") || args[0].equals("i")) {
-                    if (args.length != 1) {
-                        printHelp();
-                        continue;
-                    }
-                    info();
-                } else if (args[0].equals("agents") || args[0].equals("ag")) {
-                    if (args.length > 1) {
-                        printHelp();
-                        continue;
-                    }
-                    if (args.length == 1) {
-                        agents();
-                    }
-                } else if (args[0].equals("join")) {
-                    if (args.length != 1) {
-                        printHelp();
-                        continue;
-                    }
-                    join();
-                } else if (args[0].equals("leave")) {
-                    if (args.length != 1) {
-                        printHelp();
-                        continue;
-                    }
-                    leave();
-                } else if (args[0].equals("mkagent") || args[0].equals("mk")) {
-                    if (args.length < 2 || args.length > 4) {
-                        printHelp();
-                        continue;
-                    }
-                    if (args.length == 2) {
-                        mkagent(args[1]);
-                    } else if (args.length == 3) {
-                        mkagent(args[1], args[2]);
-                    }
-                } else if (args[0].equals("dup")) {
-                    if (args.length != 2) {
-                        printHelp();
-                        continue;
-                    }
-                    dup(Integer.parseInt(args[1]));
-                } else if (args[0].equals("sleep") || args[0].equals("sl")) {
-                    if (args.length != 2) {
-                        printHelp();
-                        continue;
-                    }
-                    sleep(Integer.parseInt(args[1]));
-                } else if (args[0].equals("wake") || args[0].equals("wa")) {
-                    if (args.length != 2) {
-                        printHelp();
-                        continue;
-                    }
-                    wake(Integer.parseInt(args[1]));
-                } else if (args[0].equals("fin")) {
-                    if (args.length != 2) {
-                        printHelp();
-                        continue;
-                    }
-                    fin(Integer.parseInt(args[1]));
-                } else if (args[0].equals("discover") || args[0].equals("dc") ||
-                           args[0].equals("discoveroneway") || args[0].equals("dco") ||
-                           args[0].equals("discoverasync") || args[0].equals("dca")) {
-                    if (args.length < 3) {
-                        printHelp();
-                        continue;
-                    }
-                    String query = args[1];
-                    String method = args[2];
-                    Object[] dcargs = new String[args.length - 3];
-                    for (int i = 0; i < dcargs.length; i++) {
-                        dcargs[i] = args[i + 3];
-                    }
-                    if (args[0].equals("discover") || args[0].equals("dc")) {
-                        discover(query, method, dcargs);
-                    } else if (args[0].equals("discoveroneway") || args[0].equals("dco")) {
-                        discoverOneway(query, method, dcargs);
-                    } else if (args[0].equals("discoverasync") || args[0].equals("dca")) {
-                        discoverAsync(query, method, dcargs);
-                    }
-                } else if (args[0].equals("discoverlocation") || args[0].equals("dcl")) {
-                    if (args.length < 6) {
-                        printHelp();
-                        continue;
-                    }
-                    double lng = Double.parseDouble(args[1]);
-                    double lat = Double.parseDouble(args[2]);
-                    double w = Double.parseDouble(args[3]);
-                    double h = Double.parseDouble(args[4]);
-                    String method = args[5];
-                    Object[] dcargs = new String[args.length - 6];
-                    for (int i = 0; i < dcargs.length; i++) {
-                        dcargs[i] = args[i + 6];
-                    }
-                    discoverLocation(lng, lat, w, h, method, dcargs);
-                } else if (args[0].equals("call") || args[0].equals("c") ||
-                           args[0].equals("calloneway") || args[0].equals("co") ||
-                           args[0].equals("callasync") || args[0].equals("ca")) {
-                    if (args.length < 3) {
-                        printHelp();
-                        continue;
-                    }
-                    int calltype = 0;
-                    if (args[0].equals("call") || args[0].equals("c")) {
-                        calltype = 0;
-                    } else if (args[0].equals("calloneway") || args[0].equals("co")) {
-                        calltype = 1;
-                    } else if (args[0].equals("callasync") || args[0].equals("ca")) {
-                        calltype = 2;
-                    }
+            ShellCommand command = commands.lookup(args.name());
+            lastCommand = command;
+            if (command == null || args.size() < command.getMinArgs()
+                    || (0 <= command.getMaxArgs() && command.getMaxArgs() < args.size())) {
+                lastCommandFailed = true;
+                printHelp();
+                return true;
+            }
 
-                    int agno = -1;
-                    try {
-                        agno = Integer.parseInt(args[1]);
-                    } catch (NumberFormatException e) {
-                    }
-                    if (agno != -1) {
-                        String method = args[2];
-                        Object[] cargs = new String[args.length - 3];
-                        for (int i = 0; i < cargs.length; i++) {
-                            cargs[i] = args[i + 3];
-                        }
-                        if (calltype == 0) {
-                            call(agno, method, cargs);
-                        } else if (calltype == 1) {
-                            callOneway(agno, method, cargs);
-                        } else if (calltype == 2) {
-                            callAsync(agno, method, cargs);
-                        }
-                    } else if (args[1].toLowerCase().startsWith("aid:")) {
-                        AgentId agid = new AgentId(args[1].substring(4));
-                        String method = args[2];
-                        Object[] cargs = new String[args.length - 3];
-                        for (int i = 0; i < cargs.length; i++) {
-                            cargs[i] = args[i + 3];
-                        }
-                        if (calltype == 0) {
-                            call(agid, method, cargs);
-                        } else if (calltype == 1) {
-                            callOneway(agid, method, cargs);
-                        } else if (calltype == 2) {
-                            callAsync(agid, method, cargs);
-                        }
-                    } else if (3 < args.length && args[1].toLowerCase().startsWith("pid:") && args[2].toLowerCase().startsWith("aid:")) {
-                        PeerId pid = new PeerId(args[1].substring(4));
-                        AgentId agid = new AgentId(args[2].substring(4));
-                        String method = args[3];
-                        Object[] cargs = new String[args.length - 4];
-                        for (int i = 0; i < cargs.length; i++) {
-                            cargs[i] = args[i + 4];
-                        }
-                        if (calltype == 0) {
-                            call(pid, agid, method, cargs);
-                        } else if (calltype == 1) {
-                            callOneway(pid, agid, method, cargs);
-                        } else if (calltype == 2) {
-                            callAsync(pid, agid, method, cargs);
-                        }
-                    } else {
-                        printHelp();
-                        continue;
-                    }
-                } else if (args[0].equals("help") || args[0].equals("?")) {
-                    printHelp();
-                    continue;
-                } else if (args[0].equals("bye")) {
+            long start = System.nanoTime();
 
-                    if (peer.isOnline()) {
-                        leave();
-                    }
-                    return;
-                } else {
-                    printHelp();
-                    continue;
-                }
+            boolean cont = command.execute(this, args);
+            // Nested commands, such as script, may overwrite the result.
+            lastCommand = command;
+            if (!cont) {
+                return false;
+            }
 
-                long etime = System.currentTimeMillis();
-                System.out.println("\t## time (msec): " + (etime - stime));
+            long elapsed = System.nanoTime() - start;
+            stats.record(command.getNames()[0], elapsed);
+            out.println("\t## time (msec): " + LatencyHistogram.toMillis(elapsed));
+        } catch (NumberFormatException e) {
+            printError("arg should be number.");
+        } catch (Exception e) {
+            lastCommandFailed = true;
+            logger.error(e.getMessage(), e);
+        }
+        return true;
+    }
 
-            } catch (NumberFormatException e) {
-                System.out.println("\t>> arg should be number.");
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
+    /**
+     * @return name of the last command, or null if it is not a command.
+     */
+    String getLastCommandName() {
+        return lastCommand == null ? null : lastCommand.getNames()[0];
+    }
+
+    /**
+     * @return true if the last command has reported an error.
+     */
+    boolean isLastCommandFailed() {
+        return lastCommandFailed;
+    }
+
+    /**
+     * Print an error message of the running command.
+     */
+    private void printError(String message) {
+        lastCommandFailed = true;
+        out.println("\t>> " + message);
+    }
+
+    /**
+     * Print a record of lines at once. Records printed by threads
+     * concurrently never interleave.
+     */
+    private void printRecord(StringBuilder record) {
+        if (console != null) {
+            console.print(record.toString());
+        } else {
+            synchronized (out) {
+                out.print(record);
+                out.flush();
             }
         }
     }
 
-    void info() {
+    /**
+     * Append a result of a call to a record.
+     */
+    private static void appendResult(StringBuilder record, boolean failed, Object value,
+            PeerId peerId, AgentId agId, long elapsed) {
+        if (failed) {
+            record.append("\t>> cannot call agent.\n");
+        } else {
+            record.append(" value: ").append(value).append('\n');
+        }
+        record.append(" peerId: ").append(peerId).append('\n');
+        record.append(" agentId: ").append(agId).append('\n');
+        record.append("\t## time (msec): ").append(LatencyHistogram.toMillis(elapsed)).append('\n');
+    }
+
+    /**
+     * Run a script file.
+     * 
+     * @param file
+     *            a script file.
+     * @return false if the script ended with bye, otherwise true.
+     */
+    boolean script(File file) {
+        if (!file.isFile()) {
+            printError(file.getPath() + " is not found.");
+            return true;
+        }
+        if (MAX_SCRIPT_DEPTH <= scriptDepth) {
+            printError("scripts are nested too deeply.");
+            return true;
+        }
+        scriptDepth++;
+        ScriptRunner runner = new ScriptRunner(this);
         try {
-            System.out.println(" peerName: " + peer.getPeerName());
-            System.out.println(" peerId: " + peer.getHome().getPeerId());
-            System.out.println(" locator: " + peer.getIdTransport().getLocator());
-            System.out.println(" location: " + peer.getHome().getLocation());
-            System.out.println(peer.getOverlayMgr().showTable());
-        } catch (Exception e) {
+            boolean cont = runner.run(file);
+            lastCommandFailed = 0 < runner.getErrors();
+            return cont;
+        } catch (IOException e) {
             logger.warn(e.getMessage(), e);
+            printError("cannot read script.");
+            return true;
+        } finally {
+            scriptDepth--;
         }
     }
 
-    void agents() {
+    void info() {
         try {
-            AgentHome home = peer.getHome();
-            agents.clear();
-            int i = 0;
-            for (AgentId agId : home.getAgentIds(null)) {
-                agents.add(agId);
-                String name = home.getAgentName(agId);
-                boolean isSleeping = home.isAgentSleeping(agId);
-                System.out.println(" " + i + ". name: " + name + ", ID: "
-                        + agId + (isSleeping ? " <sleep>" : ""));
-                i++;
-            }
-        } catch (NoSuchAgentException e) {
+            out.println(" peerName: " + peer.getPeerName());
+            out.println(" peerId: " + peer.getHome().getPeerId());
+            out.println(" locator: " + peer.getIdTransport().getLocator());
+            out.println(" location: " + peer.getHome().getLocation());
+            if (1 < peers.size()) {
+                out.println(" peer: " + current.no + " of " + peers.size());
+            }
+            JoinManager j = current.join;
+            if (j != null) {
+                JoinManager.State state = j.getState();
+                StringBuilder line = new StringBuilder(" join: ").append(state.name().toLowerCase())
+                        .append(", attempts: ").append(j.getAttempts())
+                        .append(", last (msec): ").append(LatencyHistogram.toMillis(j.getLastAttemptNanos()))
+                        .append(", time (msec): ").append(LatencyHistogram.toMillis(j.getElapsedNanos()));
+                if (state == JoinManager.State.WAITING)
+                    line.append(", retry in (msec): ").append(LatencyHistogram.toMillis(j.getRetryInNanos()));
+                if (state != JoinManager.State.ONLINE && j.getLastError() != null)
+                    line.append(", error: ").append(j.getLastError());
+                out.println(line);
+            }
+            ActivationScheduler a = current.activation;
+            if (a != null) {
+                out.println(" activation: " + (a.isReady() ? "ready" : "activating")
+                        + ", agents: " + a.getTotal()
+                        + ", activated: " + a.getActivated()
+                        + ", failed: " + a.getFailed()
+                        + ", time (msec): " + LatencyHistogram.toMillis(a.getElapsedNanos()));
+            }
+            if (console != null) {
+                out.println(" output: " + console.getPolicy().name().toLowerCase()
+                        + ", pending: " + console.getPending()
+                        + ", written: " + console.getWritten()
+                        + ", batches: " + console.getBatches()
+                        + ", dropped: " + console.getDropped());
+            }
+            out.println(peer.getOverlayMgr().showTable());
+        } catch (Exception e) {
             logger.warn(e.getMessage(), e);
         }
     }
 
+    /**
+     * List agents in the index.
+     * 
+     * @param namePattern
+     *            name pattern, or null for all agents.
+     * @param sleepingOnly
+     *            true to list only sleeping agents.
+     * @param from
+     *            the first agent number to list.
+     * @param limit
+     *            max number of agents to list.
+     * @param refresh
+     *            true to reload agents from the home before listing.
+     */
+    void agents(String namePattern, boolean sleepingOnly, int from, int limit, boolean refresh) {
+        if (refresh) {
+            agents.refresh(peer.getHome());
+        }
+        List<AgentIndex.Entry> entries = new ArrayList<AgentIndex.Entry>();
+        int rest = agents.list(from, namePattern, sleepingOnly, limit, entries);
+        StringBuilder record = new StringBuilder();
+        for (AgentIndex.Entry entry : entries) {
+            record.append(' ').append(entry.no).append(". name: ").append(entry.name)
+                    .append(", ID: ").append(entry.id)
+                    .append(entry.sleeping ? " <sleep>" : "").append('\n');
+        }
+        if (0 < rest) {
+            int next = entries.isEmpty() ? from : entries.get(entries.size() - 1).no + 1;
+            record.append(" ... ").append(rest).append(" more. (--from ").append(next).append(")\n");
+        }
+        printRecord(record);
+    }
+
+    /**
+     * List peers of the process. '*' marks the current peer.
+     */
+    void peers() {
+        for (ShellPeer p : peers) {
+            out.println((p == current ? " *" : "  ") + p.no + ". name: " + p.peer.getPeerName()
+                    + ", locator: " + p.peer.getIdTransport().getLocator()
+                    + (p.peer.isOnline() ? "" : " <offline>"));
+        }
+    }
+
+    /**
+     * Join in background if the peer has a join manager. Progress is shown by
+     * info.
+     */
     void join() {
+        JoinManager j = current.join;
+        if (j != null) {
+            if (j.start()) {
+                out.println(" joining in background.");
+            } else {
+                out.println(" already " + j.getState().name().toLowerCase() + ".");
+            }
+            return;
+        }
         try {
             peer.online();
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> join failed.");
+            printError("join failed.");
         }
     }
 
     void leave() {
         try {
+            if (current.join != null) {
+                // Stop retrying if not joined yet.
+                current.join.offline();
+                if (!peer.isOnline())
+                    return;
+            }
             peer.offline();
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> leave failed.");
+            printError("leave failed.");
         }
     }
 
     /* agents */
     void mkagent(String clazz, String name) {
         try {
-            peer.getHome().createAgent(clazz, name);
+            AgentId agId = peer.getHome().createAgent(clazz, name);
+            agents.add(agId, name, false);
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> cannot create new agent.");
+            printError("cannot create new agent.");
         }
     }
 
@@ -390,160 +1182,170 @@ public class ShellCommandProcessor {
         String agentPath = System.getProperty("piaxPeer.agent.path");
         File agentFile = new File(new File(agentPath), file);
         if (!agentFile.isFile()) {
-            System.out
-                    .println("\t>> " + file + " is not found at " + agentPath);
+            printError(file + " is not found at " + agentPath);
             return;
         }
 
         try {
             BufferedReader reader = new BufferedReader(
                     new FileReader(agentFile));
+            // mkagent is running on the tokens of the shell's tokenizer.
+            CommandTokenizer fileTokenizer = new CommandTokenizer();
             String line;
             while ((line = reader.readLine()) != null) {
-                String[] items = split(line);
-                if (items.length == 2) {
-                    peer.getHome().createAgent(items[0], items[1]);
+                CommandLine items = fileTokenizer.tokenize(line);
+                if (items != null && items.size() == 2) {
+                    AgentId agId = peer.getHome().createAgent(items.get(0), items.get(1));
+                    agents.add(agId, items.get(1), false);
                 }
             }
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> cannot create new agent.");
+            printError("cannot create new agent.");
         }
     }
 
     void dup(int agentNo) {
-        if (agents.size() <= agentNo) {
-            System.out.println("\t>> invalid agent NO.");
+        AgentIndex.Entry entry = agents.get(agentNo);
+        if (entry == null) {
+            printError("invalid agent NO.");
             return;
         }
-        AgentId agId = agents.get(agentNo);
+        AgentId agId = entry.id;
         try {
-            peer.getHome().duplicateAgent(agId);
+            AgentId newId = peer.getHome().duplicateAgent(agId);
+            agents.add(newId, peer.getHome().getAgentName(newId), false);
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> cannot duplicate agent.");
+            printError("cannot duplicate agent.");
         }
     }
 
     void sleep(int agentNo) {
-        if (agents.size() <= agentNo) {
-            System.out.println("\t>> invalid agent NO.");
+        AgentIndex.Entry entry = agents.get(agentNo);
+        if (entry == null) {
+            printError("invalid agent NO.");
             return;
         }
-        AgentId agId = agents.get(agentNo);
+        AgentId agId = entry.id;
         try {
             peer.getHome().sleepAgent(agId);
+            agents.setSleeping(agId, true);
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> cannot sleep agent.");
+            printError("cannot sleep agent.");
         }
     }
 
     void wake(int agentNo) {
-        if (agents.size() <= agentNo) {
-            System.out.println("\t>> invalid agent NO.");
+        AgentIndex.Entry entry = agents.get(agentNo);
+        if (entry == null) {
+            printError("invalid agent NO.");
             return;
         }
-        AgentId agId = agents.get(agentNo);
+        AgentId agId = entry.id;
         try {
             peer.getHome().wakeupAgent(agId);
+            agents.setSleeping(agId, false);
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> cannot wakeup agent.");
+            printError("cannot wakeup agent.");
         }
     }
 
     void fin(int agentNo) {
-        if (agents.size() <= agentNo) {
-            System.out.println("\t>> invalid agent NO.");
+        AgentIndex.Entry entry = agents.get(agentNo);
+        if (entry == null) {
+            printError("invalid agent NO.");
             return;
         }
-        AgentId agId = agents.get(agentNo);
+        AgentId agId = entry.id;
         try {
             peer.getHome().destroyAgent(agId);
+            agents.remove(agId);
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> cannot destroy agent.");
+            printError("cannot destroy agent.");
         }
     }
 
-    void discover(String query, String method, Object... args) {
+    void discover(String query, String method, long deadline, int first, boolean nocache,
+            ResultAggregator agg, Object... args) {
+        long start = System.nanoTime();
+        DiscoveryCache cache = current.discoveryCache;
+        if (cache != null && !nocache) {
+            discoverCached(cache, query, "discover", method, start, deadline, first, agg, args);
+            return;
+        }
         ReturnSet<Object> rset = null;
         try {
             rset = peer.getHome().discoveryCallAsync(query, method, args);
         } catch (IllegalStateException e) {
-            System.out.println("\t>> not joined.");
+            printError("not joined.");
             return;
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> could not discovery call.");
+            printError("could not discovery call.");
             return;
         }
 
-        while (rset.hasNext()) {
-            Object value;
-            try {
-                value = rset.getNext(3000);
-            } catch (InterruptedException e) {
-                System.out.println(" Timeout.");
-                break;
-            } catch (NoSuchElementException e) {
-                break;
-            } catch (InvocationTargetException e) {
-                long etime = System.currentTimeMillis();
-                logger.warn(e.getMessage(), e);
-                System.out.println("\t>> cannot call agent.");
-                System.out.println(" peerId: " + rset.getThisPeerId());
-                AgentId agId = (AgentId) rset.getThisTargetId();
-                System.out.println(" agentId: " + agId);
-                System.out.println("\t## time (msec): " + (etime - stime));
-                continue;
-            }
-            long etime = System.currentTimeMillis();
-            System.out.println(" value: " + value);
-            System.out.println(" peerId: " + rset.getThisPeerId());
-            AgentId agId = (AgentId) rset.getThisTargetId();
-            System.out.println(" agentId: " + agId);
-            System.out.println("\t## time (msec): " + (etime - stime));
-        }
+        receiveResults(returnsOf(rset), "discover", method, start, deadline, first, agg);
     }
 
-    void discoverAsync(String query, String method, Object... args) {
+    void discoverAsync(final String query, final String method, final Object... args) {
+        final long start = System.nanoTime();
         try {
-            final ReturnSet<Object> rset = peer.getHome().discoveryCallAsync(query, method, args);
-            asyncReturnExecutor.execute(new Runnable() {
-                public void run() {
+            asyncReturnExecutor.execute(new AsyncReturnExecutor.Task() {
+                private ReturnSet<Object> rset;
+
+                public void issue() {
+                    rset = peer.getHome().discoveryCallAsync(query, method, args);
+                }
+
+                public boolean poll() {
                     while (rset.hasNext()) {
                         Object value;
                         try {
-                            value = rset.getNext();
+                            value = rset.getNext(0);
+                        } catch (InterruptedException e) {
+                            // No result arrived yet.
+                            return false;
                         } catch (NoSuchElementException e) {
                             break;
                         } catch (InvocationTargetException e) {
-                            long etime = System.currentTimeMillis();
+                            long elapsed = System.nanoTime() - start;
+                            stats.record("discoverasync", method, elapsed);
                             logger.warn(e.getMessage(), e);
-                            System.out.println("\t>> cannot call agent.");
-                            System.out.println(" peerId: " + rset.getThisPeerId());
-                            AgentId agId = (AgentId) rset.getThisTargetId();
-                            System.out.println(" agentId: " + agId);
-                            System.out.println("\t## time (msec): " + (etime - stime));
+                            StringBuilder record = new StringBuilder();
+                            appendResult(record, true, null, rset.getThisPeerId(),
+                                    (AgentId) rset.getThisTargetId(), elapsed);
+                            printRecord(record);
                             continue;
                         }
-                        long etime = System.currentTimeMillis();
-                        System.out.println(" value: " + value);
-                        System.out.println(" peerId: " + rset.getThisPeerId());
-                        AgentId agId = (AgentId) rset.getThisTargetId();
-                        System.out.println(" agentId: " + agId);
-                        System.out.println("\t## time (msec): " + (etime - stime));
+                        long elapsed = System.nanoTime() - start;
+                        stats.record("discoverasync", method, elapsed);
+                        StringBuilder record = new StringBuilder();
+                        appendResult(record, false, value, rset.getThisPeerId(),
+                                (AgentId) rset.getThisTargetId(), elapsed);
+                        printRecord(record);
                     }
+                    return true;
+                }
+
+                public void expire() {
+                    rset.cancel();
+                    printRecord(new StringBuilder("\t>> discovery call timed out.\n"));
                 }
             });
+        } catch (RejectedExecutionException e) {
+            printError(e.getMessage());
+            return;
         } catch (IllegalStateException e) {
-            System.out.println("\t>> not joined.");
+            printError("not joined.");
             return;
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> could not discovery call.");
+            printError("could not discovery call.");
             return;
         }
     }
@@ -552,64 +1354,291 @@ public class ShellCommandProcessor {
         peer.getHome().discoveryCallOneway(query, method, args);
     }
 
-    void discoverLocation(double lng, double lat, double w, double h, String method, Object... args) {
+    void discoverLocation(double lng, double lat, double w, double h, String method,
+            long deadline, int first, boolean nocache, ResultAggregator agg, Object... args) {
+        long start = System.nanoTime();
+        String query = String.format("%s inside rect(%f, %f, %f, %f)", 
+                org.piax.agent.AgentConfigValues.LOCATION_ATTRIB_NAME,
+                lng, lat, w, h);
+        DiscoveryCache cache = current.discoveryCache;
+        if (cache != null && !nocache) {
+            discoverCached(cache, query, "discoverlocation", method, start, deadline, first, agg,
+                    args);
+            return;
+        }
         ReturnSet<Object> rset = null;
         try {
-            String query = String.format("%s inside rect(%f, %f, %f, %f)", 
-                    org.piax.agent.AgentConfigValues.LOCATION_ATTRIB_NAME,
-                    lng, lat, w, h);
             rset = peer.getHome().discoveryCallAsync(query, method, args);
         } catch (IllegalStateException e) {
-            System.out.println("\t>> not joined.");
+            printError("not joined.");
             return;
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> could not discovery call.");
+            printError("could not discovery call.");
             return;
         }
 
-        while (rset.hasNext()) {
-            Object value;
+        receiveResults(returnsOf(rset), "discoverlocation", method, start, deadline, first, agg);
+    }
+
+    /**
+     * Discovery call through the cache. A call identical to one in flight
+     * reads its results instead of issuing another discovery call. Results
+     * of a call issued here are received in background until all arrive, so
+     * they are cached even if this stops receiving early.
+     * 
+     * If the executor has no slot and this thread receives the results by
+     * CALLER policy, it stops at the deadline or the first results like
+     * reading them. The rest are cancelled and the results are not cached.
+     */
+    private void discoverCached(DiscoveryCache cache, String query, String command,
+            String method, final long start, final long deadline, final int first,
+            ResultAggregator agg, Object... args) {
+        DiscoveryCache.Kind[] kind = new DiscoveryCache.Kind[1];
+        DiscoveryCache.Cursor cursor = cache.lookup(DiscoveryCache.key(query, method, args), kind);
+        final DiscoveryCache.Stream stream = cursor.getStream();
+        if (kind[0] == DiscoveryCache.Kind.MISS) {
+            CachingDiscovery task = new CachingDiscovery(peer.getHome(), stream, query, method, args);
             try {
-                value = rset.getNext(3000);
-            } catch (InterruptedException e) {
-                System.out.println(" Timeout.");
-                break;
-            } catch (NoSuchElementException e) {
-                break;
-            } catch (InvocationTargetException e) {
-                long etime = System.currentTimeMillis();
+                boolean done = asyncReturnExecutor.execute(task, new AsyncReturnExecutor.Bound() {
+                    public boolean reached() {
+                        return (0 < deadline && start + deadline * 1000000L - System.nanoTime() <= 0)
+                                || (0 < first && first <= stream.size());
+                    }
+                });
+                if (!done) {
+                    task.cancel();
+                }
+            } catch (RejectedExecutionException e) {
+                stream.close(false);
+                cursor.cancel();
+                printError(e.getMessage());
+                return;
+            } catch (IllegalStateException e) {
+                stream.close(false);
+                cursor.cancel();
+                printError("not joined.");
+                return;
+            } catch (Exception e) {
+                stream.close(false);
+                cursor.cancel();
                 logger.warn(e.getMessage(), e);
-                System.out.println("\t>> cannot call agent.");
-                System.out.println(" peerId: " + rset.getThisPeerId());
-                AgentId agId = (AgentId) rset.getThisTargetId();
-                System.out.println(" agentId: " + agId);
-                System.out.println("\t## time (msec): " + (etime - stime));
-                continue;
+                printError("could not discovery call.");
+                return;
             }
-            long etime = System.currentTimeMillis();
-            System.out.println(" value: " + value);
-            System.out.println(" peerId: " + rset.getThisPeerId());
-            AgentId agId = (AgentId) rset.getThisTargetId();
-            System.out.println(" agentId: " + agId);
-            System.out.println("\t## time (msec): " + (etime - stime));
+        }
+        try {
+            receiveResults(cursor, command, method, start, deadline, first, agg);
+        } finally {
+            // Leave the stream, which cancels the call if no one else reads it.
+            cursor.cancel();
         }
     }
 
-    void call(int agentNo, String method, Object... cargs) {
-        if (agents.size() <= agentNo) {
-            System.out.println("\t>> invalid agent NO.");
-            return;
+    /**
+     * Receives results of a discovery call into a stream of the cache.
+     */
+    private static final class CachingDiscovery implements AsyncReturnExecutor.Task {
+        private final AgentHome home;
+        private final DiscoveryCache.Stream stream;
+        private final String query;
+        private final String method;
+        private final Object[] args;
+        private volatile ReturnSet<Object> rset;
+        private volatile boolean cancelled = false;
+        private long last;
+
+        CachingDiscovery(AgentHome home, DiscoveryCache.Stream stream, String query,
+                String method, Object[] args) {
+            this.home = home;
+            this.stream = stream;
+            this.query = query;
+            this.method = method;
+            this.args = args;
+        }
+
+        public void issue() {
+            rset = home.discoveryCallAsync(query, method, args);
+            last = System.nanoTime();
+            // Cancelled by the stream when it is neither cached nor read.
+            stream.setCanceller(new Runnable() {
+                public void run() {
+                    cancel();
+                }
+            });
+        }
+
+        public boolean poll() {
+            if (cancelled)
+                return true;
+            try {
+                return receive();
+            } catch (RuntimeException e) {
+                stream.close(false);
+                throw e;
+            }
+        }
+
+        private boolean receive() {
+            while (rset.hasNext()) {
+                Object value = null;
+                boolean failed = false;
+                try {
+                    value = rset.getNext(0);
+                } catch (InterruptedException e) {
+                    // No result arrived yet.
+                    if (System.nanoTime() - last < DISCOVERY_WAIT_NANOS)
+                        return false;
+                    cancel();
+                    return true;
+                } catch (NoSuchElementException e) {
+                    break;
+                } catch (InvocationTargetException e) {
+                    logger.warn(e.getMessage(), e);
+                    failed = true;
+                }
+                last = System.nanoTime();
+                stream.add(new DiscoveryCache.Result(value, failed,
+                        rset.getThisPeerId(), (AgentId) rset.getThisTargetId()));
+            }
+            stream.close(true);
+            return true;
+        }
+
+        public void expire() {
+            cancel();
+        }
+
+        /**
+         * Stop receiving. Results so far are read but not cached.
+         */
+        void cancel() {
+            cancelled = true;
+            rset.cancel();
+            stream.close(false);
         }
-        AgentId agId = agents.get(agentNo);
-        call(agId, method, cargs);
     }
 
-    void call(AgentId agid, String method, Object... cargs) {
-        call(null, agid, method, cargs);
+    /**
+     * @return results of a discovery call read from the ReturnSet.
+     */
+    private static DiscoveryCache.Returns returnsOf(final ReturnSet<Object> rset) {
+        return new DiscoveryCache.Returns() {
+            public boolean hasNext() {
+                return rset.hasNext();
+            }
+
+            public DiscoveryCache.Result getNext(long timeout) throws InterruptedException {
+                Object value = null;
+                boolean failed = false;
+                try {
+                    value = rset.getNext(timeout);
+                } catch (InvocationTargetException e) {
+                    logger.warn(e.getMessage(), e);
+                    failed = true;
+                }
+                return new DiscoveryCache.Result(value, failed,
+                        rset.getThisPeerId(), (AgentId) rset.getThisTargetId());
+            }
+
+            public void cancel() {
+                rset.cancel();
+            }
+        };
+    }
+
+    /**
+     * Print results of a discovery call until all results arrive, the
+     * deadline passes or the first results are received. The rest of results
+     * are cancelled.
+     * 
+     * @param start
+     *            System.nanoTime() when the discovery call is started.
+     * @param deadline
+     *            msec from start to stop receiving, or 0 to wait each result
+     *            for 3 sec.
+     * @param first
+     *            number of results to stop receiving, or 0 for all results.
+     * @param agg
+     *            aggregator to print only the aggregate and the latency
+     *            distribution instead of each result, or null.
+     */
+    private void receiveResults(DiscoveryCache.Returns rset, String command, String method,
+            long start, long deadline, int first, ResultAggregator agg) {
+        LatencyHistogram latency = agg != null ? new LatencyHistogram() : null;
+        long deadlineNanos = start + deadline * 1000000L;
+        int responses = 0;
+        long firstElapsed = -1;
+        String cutoff = null;
+        while (rset.hasNext()) {
+            long timeout = DISCOVERY_WAIT;
+            if (0 < deadline) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    cutoff = "deadline";
+                    break;
+                }
+                timeout = (remaining + 999999) / 1000000;
+            }
+            DiscoveryCache.Result result;
+            try {
+                result = rset.getNext(timeout);
+            } catch (InterruptedException e) {
+                if (0 < deadline) {
+                    cutoff = "deadline";
+                } else {
+                    out.println(" Timeout.");
+                    cutoff = "timeout";
+                }
+                break;
+            } catch (NoSuchElementException e) {
+                break;
+            }
+            long elapsed = System.nanoTime() - start;
+            stats.record(command, method, elapsed);
+            if (result.failed) {
+                lastCommandFailed = true;
+            }
+            if (agg != null) {
+                agg.add(result);
+                latency.record(elapsed);
+            } else {
+                StringBuilder record = new StringBuilder();
+                appendResult(record, result.failed, result.value, result.peerId, result.agentId,
+                        elapsed);
+                printRecord(record);
+            }
+            responses++;
+            if (firstElapsed < 0)
+                firstElapsed = elapsed;
+            if (0 < first && first <= responses) {
+                cutoff = "first";
+                break;
+            }
+        }
+        if (cutoff != null) {
+            rset.cancel();
+        }
+        if (agg != null) {
+            StringBuilder record = new StringBuilder();
+            agg.report(record);
+            if (0 < latency.getCount()) {
+                record.append(" latency (msec) min: ").append(LatencyHistogram.toMillis(latency.getMin()))
+                        .append(", p50: ").append(LatencyHistogram.toMillis(latency.getValueAtPercentile(50)))
+                        .append(", p90: ").append(LatencyHistogram.toMillis(latency.getValueAtPercentile(90)))
+                        .append(", p99: ").append(LatencyHistogram.toMillis(latency.getValueAtPercentile(99)))
+                        .append(", max: ").append(LatencyHistogram.toMillis(latency.getMax()))
+                        .append('\n');
+            }
+            printRecord(record);
+        }
+        out.println(" responses: " + responses
+                + ", first (msec): " + (firstElapsed < 0 ? "-" : LatencyHistogram.toMillis(firstElapsed))
+                + (cutoff != null ? ", cutoff: " + cutoff : ""));
     }
 
     void call(PeerId pid, AgentId agid, String method, Object... cargs) {
+        long start = System.nanoTime();
         try {
             Object obj = null;
             if (pid == null) {
@@ -617,74 +1646,67 @@ public class ShellCommandProcessor {
             } else {
                 obj = peer.getHome().call(pid, agid, method, cargs);
             }
-            System.out.println(" return value: " + obj);
+            stats.record("call", method, System.nanoTime() - start);
+            printRecord(new StringBuilder(" return value: ").append(obj).append('\n'));
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> cannot call agent.");
+            printError("cannot call agent.");
         }
     }
 
-    void callAsync(int agentNo, String method, Object... cargs) {
-        if (agents.size() <= agentNo) {
-            System.out.println("\t>> invalid agent NO.");
-            return;
-        }
-        AgentId agId = agents.get(agentNo);
-        callAsync(agId, method, cargs);
-    }
+    void callAsync(final PeerId pid, final AgentId agid, final String method,
+            final Object... cargs) {
+        final long start = System.nanoTime();
+        try {
+            asyncReturnExecutor.execute(new AsyncReturnExecutor.Task() {
+                private FutureReturn<Object> future;
 
-    void callAsync(AgentId agid, String method, Object... cargs) {
-        callAsync(null, agid, method, cargs);
-    }
+                public void issue() throws Exception {
+                    if (pid == null) {
+                        future = peer.getHome().callAsync(agid, method, cargs);
+                    } else {
+                        future = peer.getHome().callAsync(pid, agid, method, cargs);
+                    }
+                }
 
-    void callAsync(PeerId pid, AgentId agid, String method, Object... cargs) {
-        try {
-            final FutureReturn<Object> future;
-            if (pid == null) {
-                future = peer.getHome().callAsync(agid, method, cargs);
-            } else {
-                future = peer.getHome().callAsync(pid, agid, method, cargs);
-            }
-            asyncReturnExecutor.execute(new Runnable() {
-                public void run() {
+                public boolean poll() {
+                    if (!future.isDone())
+                        return false;
                     try {
                         Object obj = future.get();
-                        System.out.println(" return value: " + obj);
+                        stats.record("callasync", method, System.nanoTime() - start);
+                        printRecord(new StringBuilder(" return value: ").append(obj).append('\n'));
                     } catch (Exception e) {
                         logger.warn(e.getMessage(), e);
-                        System.out.println("\t>> cannot call agent.");
+                        printRecord(new StringBuilder("\t>> cannot call agent.\n"));
                     }
+                    return true;
                 }
-            });
 
+                public void expire() {
+                    future.cancel();
+                    printRecord(new StringBuilder("\t>> async call timed out.\n"));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            printError(e.getMessage());
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> cannot call agent.");
+            printError("cannot call agent.");
         }
     }
 
-    void callOneway(int agentNo, String method, Object... cargs) {
-        if (agents.size() <= agentNo) {
-            System.out.println("\t>> invalid agent NO.");
-            return;
-        }
-        AgentId agId = agents.get(agentNo);
-        callOneway(agId, method, cargs);
-    }
-
-    void callOneway(AgentId agid, String method, Object... cargs) {
-        callOneway(null, agid, method, cargs);
-    }
-
     void callOneway(PeerId pid, AgentId agid, String method, Object... cargs) {
+        long start = System.nanoTime();
         try {
             if (pid == null) {
                 peer.getHome().callOneway(agid, method, cargs);
             } else {
                 peer.getHome().callOneway(pid, agid, method, cargs);
             }
+            stats.record("calloneway", method, System.nanoTime() - start);
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
-            System.out.println("\t>> cannot call agent.");
+            printError("cannot call agent.");
         }
     }}
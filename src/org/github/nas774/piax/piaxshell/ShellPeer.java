@@ -0,0 +1,35 @@
+package org.github.nas774.piax.piaxshell;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.piax.agent.AgentId;
+import org.piax.agent.AgentPeer;
+
+/**
+ * A peer run by the shell and the state the shell keeps for it. A process
+ * may run several peers.
+ */
+final class ShellPeer {
+    /** index of the peer in the process, from 0. */
+    final int no;
+    final AgentPeer peer;
+    /** Agents created from property files. Keys are absolute. */
+    final Map<File, AgentId> fileAgents = new ConcurrentHashMap<File, AgentId>();
+    /** Last modified time of the property file each agent was created from. */
+    final Map<AgentId, Long> fileModified = new ConcurrentHashMap<AgentId, Long>();
+    /** Agents on the home, shared by all sessions. */
+    final AgentIndex agents = new AgentIndex();
+    /** Activation of agents at boot and reloaded, or null if not started. */
+    volatile ActivationScheduler activation = null;
+    /** Results of discovery calls, or null if not cached. */
+    volatile DiscoveryCache discoveryCache = null;
+    /** Join in background, or null if joined synchronously. */
+    volatile JoinManager join = null;
+
+    ShellPeer(int no, AgentPeer peer) {
+        this.no = no;
+        this.peer = peer;
+    }
+}
@@ -0,0 +1,186 @@
+package org.github.nas774.piax.piaxshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.piax.agent.AgentHome;
+import org.piax.agent.AgentId;
+import org.piax.agent.AgentIf;
+import org.piax.agent.AgentPeer;
+import org.piax.agent.PersistentAgent;
+import org.piax.trans.ts.emu.EmuLocator;
+
+public class AgentSnapshotTest {
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    public interface CounterIf extends AgentIf {
+        int getCount();
+
+        void setCount(int count);
+    }
+
+    public static class Counter extends PersistentAgent implements CounterIf {
+        private static final long serialVersionUID = 1L;
+
+        private int count;
+
+        public int getCount() {
+            return count;
+        }
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+    }
+
+    private AgentPeer peer;
+    private AgentHome home;
+
+    @Before
+    public void setUp() throws Exception {
+        EmuLocator locator = new EmuLocator(21000);
+        peer = new AgentPeer(null, "snapshot", locator, Collections.singleton(locator), false,
+                dir.newFolder("agents"));
+        home = peer.getHome();
+    }
+
+    @After
+    public void tearDown() {
+        peer.fin();
+    }
+
+    private AgentId newCounter(String name, int count) throws Exception {
+        AgentId id = home.createAgent(Counter.class.getName(), name);
+        ((CounterIf) home.getStub(id)).setCount(count);
+        return id;
+    }
+
+    private int countOf(AgentId id) throws Exception {
+        return ((CounterIf) home.getStub(id)).getCount();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        File prop = dir.newFile("a.agent");
+        AgentId a = newCounter("a", 1);
+        AgentId b = newCounter(null, 2);
+        AgentId c = newCounter("c", 3);
+        File snapshot = new File(dir.getRoot(), "agents.snapshot");
+
+        AgentSnapshot.Writer writer = new AgentSnapshot.Writer(snapshot);
+        writer.add(home, a, new AgentSnapshot.Entry(prop, prop.lastModified(), 5, "a"), dir.newFile());
+        writer.add(home, b, new AgentSnapshot.Entry(null, 0, 0, null), dir.newFile());
+        writer.add(home, c, new AgentSnapshot.Entry(null, 0, 1, "c"), dir.newFile());
+        assertEquals(3, writer.getCount());
+        writer.commit();
+        assertFalse(new File(snapshot.getPath() + ".tmp").exists());
+        for (AgentId id : new AgentId[] { a, b, c })
+            home.destroyAgent(id);
+
+        AgentSnapshot.Reader reader = new AgentSnapshot.Reader(snapshot);
+        try {
+            AgentSnapshot.Entry entry = reader.next();
+            assertEquals(prop.getPath(), entry.file.getPath());
+            assertEquals(5, entry.priority);
+            assertEquals("a", entry.name);
+            assertFalse(entry.isStale());
+            assertEquals(1, countOf(reader.restore(home, dir.newFile())));
+
+            entry = reader.next();
+            assertNull(entry.file);
+            assertNull(entry.name);
+            assertEquals(2, countOf(reader.restore(home, dir.newFile())));
+
+            // skipped without restoring.
+            entry = reader.next();
+            assertEquals("c", entry.name);
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+        assertEquals(2, home.getAgentIds().size());
+    }
+
+    @Test
+    public void failedSaveAppendsNothing() throws Exception {
+        AgentId a = newCounter("a", 1);
+        AgentId gone = newCounter("gone", 2);
+        home.destroyAgent(gone);
+        AgentId c = newCounter("c", 3);
+        File snapshot = new File(dir.getRoot(), "agents.snapshot");
+
+        AgentSnapshot.Writer writer = new AgentSnapshot.Writer(snapshot);
+        writer.add(home, a, new AgentSnapshot.Entry(null, 0, 0, "a"), dir.newFile());
+        try {
+            writer.add(home, gone, new AgentSnapshot.Entry(null, 0, 0, "gone"), dir.newFile());
+            fail();
+        } catch (Exception expected) {
+        }
+        writer.add(home, c, new AgentSnapshot.Entry(null, 0, 0, "c"), dir.newFile());
+        assertEquals(2, writer.getCount());
+        writer.commit();
+
+        AgentSnapshot.Reader reader = new AgentSnapshot.Reader(snapshot);
+        try {
+            assertEquals("a", reader.next().name);
+            assertEquals("c", reader.next().name);
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void abortKeepsPreviousSnapshot() throws Exception {
+        AgentId a = newCounter("a", 1);
+        File snapshot = new File(dir.getRoot(), "agents.snapshot");
+        AgentSnapshot.Writer writer = new AgentSnapshot.Writer(snapshot);
+        writer.add(home, a, new AgentSnapshot.Entry(null, 0, 0, "a"), dir.newFile());
+        writer.commit();
+
+        writer = new AgentSnapshot.Writer(snapshot);
+        writer.abort();
+        assertFalse(new File(snapshot.getPath() + ".tmp").exists());
+        AgentSnapshot.Reader reader = new AgentSnapshot.Reader(snapshot);
+        try {
+            assertEquals("a", reader.next().name);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void staleEntry() throws Exception {
+        File prop = dir.newFile("a.agent");
+        AgentSnapshot.Entry entry = new AgentSnapshot.Entry(prop, prop.lastModified(), 0, "a");
+        assertFalse(entry.isStale());
+        assertTrue(prop.setLastModified(prop.lastModified() - 10000));
+        assertTrue(entry.isStale());
+        assertTrue(prop.delete());
+        assertTrue(entry.isStale());
+        assertFalse(new AgentSnapshot.Entry(null, 0, 0, null).isStale());
+    }
+
+    @Test(expected = IOException.class)
+    public void notASnapshot() throws Exception {
+        File file = dir.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        new AgentSnapshot.Reader(file);
+    }
+}
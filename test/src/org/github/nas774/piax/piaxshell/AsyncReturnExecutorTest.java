@@ -0,0 +1,107 @@
+package org.github.nas774.piax.piaxshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncReturnExecutorTest {
+    private AsyncReturnExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /**
+     * A task done when released, or never.
+     */
+    private static final class Gate implements AsyncReturnExecutor.Task {
+        volatile boolean open = false;
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile boolean expired = false;
+
+        public void issue() {
+        }
+
+        public boolean poll() {
+            if (!open)
+                return false;
+            finished.countDown();
+            return true;
+        }
+
+        public void expire() {
+            expired = true;
+            finished.countDown();
+        }
+    }
+
+    @Test
+    public void completes() throws Exception {
+        executor = new AsyncReturnExecutor(1, 10, AsyncReturnExecutor.Policy.BLOCK, 10000);
+        Gate task = new Gate();
+        executor.execute(task);
+        assertEquals(1, executor.getInFlight());
+        task.open = true;
+        assertTrue(task.finished.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && executor.getInFlight() != 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, executor.getInFlight());
+        assertEquals(1, executor.getCompleted());
+        assertFalse(task.expired);
+    }
+
+    @Test
+    public void expiredTaskFreesItsSlot() throws Exception {
+        executor = new AsyncReturnExecutor(1, 1, AsyncReturnExecutor.Policy.BLOCK, 100);
+        Gate never = new Gate();
+        executor.execute(never);
+        long start = System.nanoTime();
+        // Blocks until the first one expires.
+        Gate next = new Gate();
+        next.open = true;
+        executor.execute(next);
+        assertTrue(never.expired);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertTrue(next.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getExpired());
+    }
+
+    @Test
+    public void rejectsWhenFull() throws Exception {
+        executor = new AsyncReturnExecutor(1, 1, AsyncReturnExecutor.Policy.REJECT, 10000);
+        executor.execute(new Gate());
+        try {
+            executor.execute(new Gate());
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(1, executor.getRejected());
+    }
+
+    @Test
+    public void callerRunsUntilTimeoutOrBound() throws Exception {
+        executor = new AsyncReturnExecutor(1, 1, AsyncReturnExecutor.Policy.CALLER, 100);
+        executor.execute(new Gate());
+        Gate bounded = new Gate();
+        assertFalse(executor.execute(bounded, new AsyncReturnExecutor.Bound() {
+            public boolean reached() {
+                return true;
+            }
+        }));
+        assertFalse(bounded.expired);
+        Gate never = new Gate();
+        executor.execute(never);
+        assertTrue(never.expired);
+        assertEquals(2, executor.getCallerRuns());
+    }
+}
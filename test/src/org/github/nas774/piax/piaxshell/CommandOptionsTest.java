@@ -0,0 +1,75 @@
+package org.github.nas774.piax.piaxshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class CommandOptionsTest {
+    private static final String[] VALUES = { "duration", "concurrency" };
+    private static final String[] FLAGS = { "first" };
+
+    private static CommandOptions parse(String input) {
+        CommandLine line = new CommandTokenizer().tokenize(input);
+        return CommandOptions.parse(line, 1, VALUES, FLAGS);
+    }
+
+    @Test
+    public void valuesAndFlags() {
+        CommandOptions options = parse("bench --concurrency 8 --first --duration 3s 0 echo");
+        assertEquals(8, options.getInt("concurrency", 1));
+        assertEquals(3000, options.getMillis("duration", 0));
+        assertTrue(options.has("first"));
+        assertEquals(6, options.next());
+    }
+
+    @Test
+    public void defaults() {
+        CommandOptions options = parse("bench 0 echo");
+        assertFalse(options.has("first"));
+        assertEquals(1, options.getInt("concurrency", 1));
+        assertEquals(10000, options.getMillis("duration", 10000));
+        assertEquals("x", options.get("duration", "x"));
+        assertEquals(1, options.next());
+    }
+
+    @Test
+    public void doubleDashEndsOptions() {
+        CommandOptions options = parse("bench --first -- --duration 1");
+        assertTrue(options.has("first"));
+        assertFalse(options.has("duration"));
+        assertEquals(3, options.next());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownOption() {
+        parse("bench --nosuch 0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingValue() {
+        parse("bench --duration");
+    }
+
+    @Test
+    public void durations() {
+        assertEquals(500, CommandOptions.parseMillis("500"));
+        assertEquals(500, CommandOptions.parseMillis("500ms"));
+        assertEquals(3000, CommandOptions.parseMillis("3s"));
+        assertEquals(120000, CommandOptions.parseMillis("2m"));
+        assertEquals(1500, CommandOptions.parseMillis(" 1500MS "));
+    }
+
+    @Test
+    public void badDurations() {
+        for (String value : new String[] { "", "s", "1.5s", "3h", "ms1" }) {
+            try {
+                CommandOptions.parseMillis(value);
+                fail(value);
+            } catch (NumberFormatException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.github.nas774.piax.piaxshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.piax.agent.AgentPeer;
+import org.piax.trans.ts.emu.EmuLocator;
+
+public class CommandServerTest {
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private AgentPeer peer;
+    private CommandServer server;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+
+    @Before
+    public void setUp() throws Exception {
+        EmuLocator locator = new EmuLocator(22000);
+        peer = new AgentPeer(null, "server", locator, Collections.singleton(locator), false,
+                dir.getRoot());
+        server = new CommandServer(new ShellCommandProcessor(peer), 0, 2);
+        server.start();
+        socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(10000);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        server.close();
+        peer.fin();
+    }
+
+    private void send(String s) throws IOException {
+        out.write(s.getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0)
+                return null;
+            line.write(b);
+        }
+        return line.toString("US-ASCII");
+    }
+
+    /**
+     * @return type and output of the next response, or null at the end.
+     */
+    private String[] readResponse() throws IOException {
+        String header = readLine(in);
+        if (header == null)
+            return null;
+        String[] parts = header.split(" ");
+        assertEquals(header, 2, parts.length);
+        byte[] body = new byte[Integer.parseInt(parts[1])];
+        in.readFully(body);
+        return new String[] { parts[0], new String(body, "UTF-8") };
+    }
+
+    @Test
+    public void pipelinedCommandsAnswerInOrder() throws Exception {
+        send("help\r\nnosuch\nhelp\n");
+        String[] help = readResponse();
+        assertEquals("OK", help[0]);
+        assertTrue(help[1].contains("bye"));
+        String[] error = readResponse();
+        assertEquals("ERR", error[0]);
+        assertEquals("OK", readResponse()[0]);
+    }
+
+    @Test
+    public void lineSplitAcrossPackets() throws Exception {
+        send("he");
+        Thread.sleep(50);
+        send("lp\n");
+        assertEquals("OK", readResponse()[0]);
+    }
+
+    @Test
+    public void byeClosesAfterResponse() throws Exception {
+        send("bye\nhelp\n");
+        assertEquals("OK", readResponse()[0]);
+        assertNull(readResponse());
+    }
+
+    @Test
+    public void tooLongLineClosesSession() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 70 * 1024; i++)
+            sb.append('x');
+        try {
+            send(sb.toString());
+        } catch (IOException e) {
+            // closed while sending.
+        }
+        try {
+            assertNull(readResponse());
+        } catch (IOException e) {
+            // reset by the server.
+        }
+    }
+
+    @Test
+    public void sessionsAreCounted() throws Exception {
+        send("help\n");
+        readResponse();
+        assertEquals(1, server.getSessions());
+        send("bye\n");
+        readResponse();
+        assertNull(readResponse());
+        for (int i = 0; i < 100 && server.getSessions() != 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, server.getSessions());
+    }
+}
@@ -0,0 +1,65 @@
+package org.github.nas774.piax.piaxshell;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class CommandTokenizerTest {
+    private final CommandTokenizer tokenizer = new CommandTokenizer();
+
+    private String[] tokenize(String input) {
+        CommandLine line = tokenizer.tokenize(input);
+        return line == null ? null : line.toArray();
+    }
+
+    @Test
+    public void splitsBySpaces() {
+        assertArrayEquals(new String[] { "call", "0", "echo", "hello" },
+                tokenize("  call 0\techo   hello \r\n"));
+    }
+
+    @Test
+    public void emptyLine() {
+        assertEquals(0, tokenizer.tokenize("").size());
+        assertEquals(0, tokenizer.tokenize(" \t ").size());
+    }
+
+    @Test
+    public void commandName() {
+        assertArrayEquals(new String[] { "set-log_level2" }, tokenize("set-log_level2"));
+        assertNull(tokenize("0call"));
+        assertNull(tokenize("-call"));
+        assertNull(tokenize("ca!ll 1"));
+    }
+
+    @Test
+    public void quotedArgument() {
+        assertArrayEquals(new String[] { "call", "0", "echo", "hello world", "" },
+                tokenize("call 0 echo \"hello world\" \"\""));
+        assertArrayEquals(new String[] { "call", "say \"hi\"" },
+                tokenize("call \"say \\\"hi\\\"\""));
+    }
+
+    @Test
+    public void unterminatedQuoteLastsUntilEndOfLine() {
+        assertArrayEquals(new String[] { "call", "a b" }, tokenize("call \"a b"));
+    }
+
+    @Test
+    public void backslashesAreRemoved() {
+        assertArrayEquals(new String[] { "put", "ab", "c:d" }, tokenize("put a\\b \"c:\\d\""));
+    }
+
+    @Test
+    public void longLineGrowsBuffer() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            sb.append('x');
+        String arg = sb.toString();
+        assertArrayEquals(new String[] { "echo", arg }, tokenize("echo " + arg));
+        // buffers are reused by the next call.
+        assertArrayEquals(new String[] { "echo", "y" }, tokenize("echo y"));
+    }
+}
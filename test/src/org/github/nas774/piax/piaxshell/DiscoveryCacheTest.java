@@ -0,0 +1,224 @@
+package org.github.nas774.piax.piaxshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class DiscoveryCacheTest {
+    private static final Object KEY = DiscoveryCache.key("location in rect(0,0,10,10)", "echo",
+            new Object[] { "x" });
+
+    private static DiscoveryCache.Result result(Object value) {
+        return new DiscoveryCache.Result(value, false, null, null);
+    }
+
+    private static DiscoveryCache.Kind lookup(DiscoveryCache cache, Object key,
+            DiscoveryCache.Stream[] stream) {
+        DiscoveryCache.Kind[] kind = new DiscoveryCache.Kind[1];
+        DiscoveryCache.Cursor cursor = cache.lookup(key, kind);
+        stream[0] = cursor.getStream();
+        // Tests attach their own readers.
+        cursor.cancel();
+        return kind[0];
+    }
+
+    private static Runnable counter(final AtomicInteger count) {
+        return new Runnable() {
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void keyIsByValue() {
+        assertEquals(KEY, DiscoveryCache.key("location in rect(0,0,10,10)", "echo", new Object[] { "x" }));
+        assertFalse(KEY.equals(DiscoveryCache.key("location in rect(0,0,10,10)", "echo", new Object[] { "y" })));
+    }
+
+    @Test
+    public void missCoalescedHit() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache(60000, 10, 100);
+        DiscoveryCache.Stream[] s = new DiscoveryCache.Stream[1];
+
+        assertEquals(DiscoveryCache.Kind.MISS, lookup(cache, KEY, s));
+        DiscoveryCache.Stream stream = s[0];
+        stream.add(result("a"));
+
+        assertEquals(DiscoveryCache.Kind.COALESCED, lookup(cache, KEY, s));
+        assertSame(stream, s[0]);
+        DiscoveryCache.Cursor coalesced = s[0].cursor();
+        assertEquals("a", coalesced.getNext(0).value);
+        assertTrue(coalesced.hasNext());
+
+        stream.add(result("b"));
+        stream.close(true);
+        assertEquals("b", coalesced.getNext(0).value);
+        assertFalse(coalesced.hasNext());
+
+        assertEquals(DiscoveryCache.Kind.HIT, lookup(cache, KEY, s));
+        assertSame(stream, s[0]);
+        DiscoveryCache.Cursor hit = s[0].cursor();
+        assertEquals("a", hit.getNext(0).value);
+        assertEquals("b", hit.getNext(0).value);
+        try {
+            hit.getNext(0);
+            fail();
+        } catch (NoSuchElementException expected) {
+        }
+
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getCoalesced());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void readerWaitsForResults() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache(60000, 10, 100);
+        DiscoveryCache.Stream[] s = new DiscoveryCache.Stream[1];
+        lookup(cache, KEY, s);
+        final DiscoveryCache.Stream stream = s[0];
+        DiscoveryCache.Cursor cursor = stream.cursor();
+        try {
+            cursor.getNext(10);
+            fail();
+        } catch (InterruptedException expected) {
+        }
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                stream.add(result("late"));
+            }
+        };
+        t.start();
+        assertEquals("late", cursor.getNext(5000).value);
+        t.join();
+    }
+
+    @Test
+    public void incompleteStreamIsNotKept() {
+        DiscoveryCache cache = new DiscoveryCache(60000, 10, 100);
+        DiscoveryCache.Stream[] s = new DiscoveryCache.Stream[1];
+        lookup(cache, KEY, s);
+        DiscoveryCache.Stream stream = s[0];
+        stream.close(false);
+        assertEquals(0, cache.size());
+        assertEquals(DiscoveryCache.Kind.MISS, lookup(cache, KEY, s));
+        assertNotSame(stream, s[0]);
+    }
+
+    @Test
+    public void expiresAfterTtl() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache(50, 10, 100);
+        DiscoveryCache.Stream[] s = new DiscoveryCache.Stream[1];
+        lookup(cache, KEY, s);
+        s[0].close(true);
+        assertEquals(DiscoveryCache.Kind.HIT, lookup(cache, KEY, s));
+        Thread.sleep(100);
+        assertEquals(DiscoveryCache.Kind.MISS, lookup(cache, KEY, s));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        DiscoveryCache cache = new DiscoveryCache(60000, 2, 100);
+        DiscoveryCache.Stream[] s = new DiscoveryCache.Stream[1];
+        lookup(cache, "a", s);
+        s[0].close(true);
+        lookup(cache, "b", s);
+        s[0].close(true);
+        // a is used more recently than b.
+        assertEquals(DiscoveryCache.Kind.HIT, lookup(cache, "a", s));
+        assertEquals(DiscoveryCache.Kind.MISS, lookup(cache, "c", s));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(DiscoveryCache.Kind.HIT, lookup(cache, "a", s));
+        assertEquals(DiscoveryCache.Kind.MISS, lookup(cache, "b", s));
+    }
+
+    @Test
+    public void oversizedStreamIsRemovedButStillRead() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache(60000, 10, 2);
+        DiscoveryCache.Stream[] s = new DiscoveryCache.Stream[1];
+        lookup(cache, KEY, s);
+        DiscoveryCache.Stream stream = s[0];
+        DiscoveryCache.Cursor cursor = stream.cursor();
+        for (int i = 0; i < 3; i++)
+            stream.add(result(i));
+        stream.close(true);
+        assertEquals(1, cache.getOversizes());
+        assertEquals(0, cache.size());
+        for (int i = 0; i < 3; i++)
+            assertEquals(i, cursor.getNext(0).value);
+        assertFalse(cursor.hasNext());
+        assertEquals(DiscoveryCache.Kind.MISS, lookup(cache, KEY, s));
+    }
+
+    @Test
+    public void oversizedStreamIsCancelledWhenLastReaderLeaves() throws Exception {
+        DiscoveryCache cache = new DiscoveryCache(60000, 10, 2);
+        DiscoveryCache.Cursor first = cache.lookup(KEY, new DiscoveryCache.Kind[1]);
+        DiscoveryCache.Stream stream = first.getStream();
+        DiscoveryCache.Cursor second = stream.cursor();
+        AtomicInteger cancels = new AtomicInteger();
+        stream.setCanceller(counter(cancels));
+        for (int i = 0; i < 3; i++)
+            stream.add(result(i));
+        assertEquals(1, cache.getOversizes());
+
+        first.cancel();
+        first.cancel();
+        assertFalse(first.hasNext());
+        assertEquals(0, cancels.get());
+        assertEquals(0, second.getNext(0).value);
+
+        second.cancel();
+        assertEquals(1, cancels.get());
+        // No more buffering.
+        stream.add(result(3));
+        assertEquals(3, stream.size());
+    }
+
+    @Test
+    public void evictedStreamWithoutReaderIsCancelled() {
+        DiscoveryCache cache = new DiscoveryCache(60000, 1, 100);
+        DiscoveryCache.Cursor cursor = cache.lookup("a", new DiscoveryCache.Kind[1]);
+        AtomicInteger cancels = new AtomicInteger();
+        cursor.getStream().setCanceller(counter(cancels));
+        cursor.cancel();
+        assertEquals(0, cancels.get());
+
+        cache.lookup("b", new DiscoveryCache.Kind[1]).cancel();
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cancels.get());
+    }
+
+    @Test
+    public void closedStreamIsNotCancelled() {
+        DiscoveryCache cache = new DiscoveryCache(60000, 10, 1);
+        DiscoveryCache.Cursor cursor = cache.lookup(KEY, new DiscoveryCache.Kind[1]);
+        DiscoveryCache.Stream stream = cursor.getStream();
+        AtomicInteger cancels = new AtomicInteger();
+        stream.setCanceller(counter(cancels));
+        stream.add(result(0));
+        stream.add(result(1));
+        stream.close(true);
+        cursor.cancel();
+        assertEquals(0, cancels.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badMaxResults() {
+        new DiscoveryCache(1000, 10, 0);
+    }
+}
@@ -0,0 +1,149 @@
+package org.github.nas774.piax.piaxshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.piax.agent.AgentPeer;
+import org.piax.trans.common.PeerLocator;
+import org.piax.trans.ts.emu.EmuLocator;
+
+public class JoinManagerTest {
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private static int port = 20000;
+
+    /**
+     * A peer whose first attempts to get online fail. It does not join the
+     * overlay actually.
+     */
+    private static final class FlakyPeer extends AgentPeer {
+        private int failures;
+        private volatile int attempts = 0;
+        private volatile boolean online = false;
+
+        FlakyPeer(PeerLocator locator, File dir, int failures) throws Exception {
+            super(null, "flaky" + locator, locator, Collections.singleton(locator), false, dir);
+            this.failures = failures;
+        }
+
+        @Override
+        public void online() throws Exception {
+            attempts++;
+            if (0 < failures--)
+                throw new Exception("seed is dead");
+            online = true;
+        }
+
+        @Override
+        public boolean isOnline() {
+            return online;
+        }
+    }
+
+    private FlakyPeer peer;
+
+    private FlakyPeer newPeer(int failures) throws Exception {
+        peer = new FlakyPeer(new EmuLocator(port++), dir.getRoot(), failures);
+        return peer;
+    }
+
+    @After
+    public void tearDown() {
+        if (peer != null)
+            peer.fin();
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void retriesUntilOnline() throws Exception {
+        JoinManager join = new JoinManager(newPeer(2), 10, 40, 0);
+        CountDownLatch done = new CountDownLatch(1);
+        join.onFinished(countDown(done));
+        assertTrue(join.start());
+        assertFalse(join.start());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(JoinManager.State.ONLINE, join.getState());
+        assertEquals(3, join.getAttempts());
+        assertEquals(3, peer.attempts);
+        assertTrue(0 < join.getElapsedNanos());
+        // already online.
+        assertFalse(join.start());
+        CountDownLatch late = new CountDownLatch(1);
+        join.onFinished(countDown(late));
+        assertEquals(0, late.getCount());
+    }
+
+    @Test
+    public void runsHooksWhenGivingUp() throws Exception {
+        JoinManager join = new JoinManager(newPeer(100), 10, 20, 3);
+        CountDownLatch done = new CountDownLatch(1);
+        join.onFinished(countDown(done));
+        join.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(JoinManager.State.FAILED, join.getState());
+        assertEquals(3, join.getAttempts());
+        assertTrue(join.getLastError().contains("seed is dead"));
+    }
+
+    @Test
+    public void runsHooksOutOfTheLock() throws Exception {
+        final JoinManager join = new JoinManager(newPeer(1), 10, 20, 0);
+        final AtomicReference<JoinManager.State> seen = new AtomicReference<JoinManager.State>();
+        CountDownLatch done = new CountDownLatch(1);
+        join.onFinished(new Runnable() {
+            public void run() {
+                // Would deadlock if the hook ran holding the monitor.
+                Thread other = new Thread() {
+                    public void run() {
+                        seen.set(join.getState());
+                    }
+                };
+                other.start();
+                try {
+                    other.join(5000);
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        join.onFinished(countDown(done));
+        join.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(JoinManager.State.ONLINE, seen.get());
+    }
+
+    @Test
+    public void cancelStopsRetrying() throws Exception {
+        JoinManager join = new JoinManager(newPeer(100), 200, 200, 0);
+        join.start();
+        Thread.sleep(50);
+        join.cancel();
+        assertEquals(JoinManager.State.OFFLINE, join.getState());
+        int attempts = peer.attempts;
+        Thread.sleep(400);
+        assertEquals(attempts, peer.attempts);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badBackoff() throws Exception {
+        new JoinManager(newPeer(0), 100, 50, 0);
+    }
+}
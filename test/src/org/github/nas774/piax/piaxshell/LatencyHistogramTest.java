@@ -0,0 +1,89 @@
+package org.github.nas774.piax.piaxshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected * 0.03);
+    }
+
+    @Test
+    public void empty() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMin());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getMean());
+        assertEquals(0, h.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 10; v++)
+            h.record(v);
+        assertEquals(5, h.getValueAtPercentile(50));
+        assertEquals(9, h.getValueAtPercentile(90));
+        assertEquals(10, h.getValueAtPercentile(100));
+        assertEquals(1, h.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        // 1 to 10000 microseconds.
+        for (long us = 1; us <= 10000; us++)
+            h.record(us * 1000);
+        assertEquals(10000, h.getCount());
+        assertEquals(1000, h.getMin());
+        assertEquals(10000000, h.getMax());
+        assertEquals(5000500, h.getMean());
+        assertNear(5000000, h.getValueAtPercentile(50));
+        assertNear(9000000, h.getValueAtPercentile(90));
+        assertNear(9900000, h.getValueAtPercentile(99));
+        assertNear(9990000, h.getValueAtPercentile(99.9));
+        assertEquals(10000000, h.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void negativeAndHugeValues() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-5);
+        assertEquals(0, h.getMax());
+        long huge = 1L << 50;
+        h.record(huge);
+        assertEquals(huge, h.getMax());
+        // counted as the max bucket, but reported within recorded values.
+        long p100 = h.getValueAtPercentile(100);
+        assertTrue(0 < p100 && p100 <= huge);
+    }
+
+    @Test
+    public void addAndReset() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            a.record(1000);
+            b.record(3000);
+        }
+        a.add(b);
+        assertEquals(200, a.getCount());
+        assertEquals(1000, a.getMin());
+        assertEquals(3000, a.getMax());
+        assertEquals(2000, a.getMean());
+        assertNear(1000, a.getValueAtPercentile(50));
+        assertNear(3000, a.getValueAtPercentile(51));
+
+        a.reset();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getValueAtPercentile(99));
+        a.record(42);
+        assertEquals(42, a.getMin());
+        assertEquals(42, a.getMax());
+    }
+}
@@ -0,0 +1,85 @@
+package org.github.nas774.piax.piaxshell;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ResultAggregatorTest {
+
+    private static String aggregate(String spec, Object... values) {
+        ResultAggregator agg = ResultAggregator.of(spec);
+        for (Object value : values) {
+            agg.add(value instanceof Throwable
+                    ? new DiscoveryCache.Result(value, true, null, null)
+                    : new DiscoveryCache.Result(value, false, null, null));
+        }
+        StringBuilder record = new StringBuilder();
+        agg.report(record);
+        return record.toString();
+    }
+
+    private static void assertContains(String expected, String actual) {
+        assertTrue("expected " + expected + " in:\n" + actual, actual.contains(expected));
+    }
+
+    @Test
+    public void count() {
+        String r = aggregate("count", 1, "x", new Exception(), null);
+        assertContains("responses: 4, failed: 1\n", r);
+        assertContains(" count: 3\n", r);
+    }
+
+    @Test
+    public void sumOfIntegers() {
+        String r = aggregate("sum", 1, 2L, (short) 3, "x");
+        assertContains("skipped: 1", r);
+        assertContains(" sum: 6, count: 3", r);
+    }
+
+    @Test
+    public void sumOfNumberStrings() {
+        String r = aggregate("sum", 1, "2.5");
+        assertContains(" sum: 3.5, count: 2", r);
+    }
+
+    @Test
+    public void minAndMaxKeepOriginalValues() {
+        assertContains(" min: -1\n", aggregate("min", "3", -1, 2.5));
+        assertContains(" max: 3\n", aggregate("max", "3", -1, 2.5));
+        assertContains(" max: -\n", aggregate("max", "x"));
+    }
+
+    @Test
+    public void topk() {
+        String r = aggregate("topk:2", 5, 1, 9, 7, "x");
+        assertContains(" top 2:\n  1. value: 9, agentId: null\n  2. value: 7, agentId: null\n", r);
+    }
+
+    @Test
+    public void distinct() {
+        String r = aggregate("distinct", "a", "b", "a", new Exception());
+        assertContains("responses: 4, failed: 1\n", r);
+        assertContains(" distinct: 2\n", r);
+    }
+
+    @Test
+    public void distinctOverflow() {
+        ResultAggregator agg = ResultAggregator.of("distinct");
+        for (int i = 0; i <= ResultAggregator.MAX_DISTINCT; i++)
+            agg.add(new DiscoveryCache.Result(i, false, null, null));
+        StringBuilder record = new StringBuilder();
+        agg.report(record);
+        assertContains(" distinct: " + ResultAggregator.MAX_DISTINCT + " or more", record.toString());
+        assertContains("  ...\n", record.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownSpec() {
+        ResultAggregator.of("avg");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badTopk() {
+        ResultAggregator.of("topk:0");
+    }
+}
@@ -0,0 +1,75 @@
+package org.github.nas774.piax.piaxshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SeedProberTest {
+
+    @Test
+    public void parse() {
+        List<InetSocketAddress> seeds = SeedProber.parse(" 127.0.0.1:12367, localhost:1\t127.0.0.1:12367 ,,");
+        assertEquals(Arrays.asList(new InetSocketAddress("127.0.0.1", 12367),
+                new InetSocketAddress("localhost", 1)), seeds);
+        assertTrue(SeedProber.parse(" ").isEmpty());
+    }
+
+    @Test
+    public void parseErrors() {
+        for (String spec : new String[] { "127.0.0.1", ":12367", "127.0.0.1:", "127.0.0.1:x",
+                "127.0.0.1:0", "127.0.0.1:65536" }) {
+            try {
+                SeedProber.parse(spec);
+                fail(spec);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void ranksLiveThenSelfThenDead() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        ServerSocket dead = new ServerSocket(0, 50, loopback);
+        InetSocketAddress deadAddress = new InetSocketAddress(loopback, dead.getLocalPort());
+        dead.close();
+        ServerSocket live = new ServerSocket(0, 50, loopback);
+        try {
+            InetSocketAddress liveAddress = new InetSocketAddress(loopback, live.getLocalPort());
+            InetSocketAddress self = new InetSocketAddress(loopback, 1);
+            List<SeedProber.Probe> probes = new SeedProber(1000).probe(
+                    Arrays.asList(deadAddress, self, liveAddress), Collections.singleton(self));
+
+            assertEquals(3, probes.size());
+            assertEquals(liveAddress, probes.get(0).address);
+            assertTrue(probes.get(0).isAlive());
+            assertTrue(0 <= probes.get(0).nanos);
+            assertEquals(self, probes.get(1).address);
+            assertTrue(probes.get(1).self);
+            assertTrue(probes.get(1).isAlive());
+            assertEquals(deadAddress, probes.get(2).address);
+            assertFalse(probes.get(2).isAlive());
+            assertTrue(probes.get(2).error != null);
+        } finally {
+            live.close();
+        }
+    }
+
+    @Test
+    public void unresolvedIsDead() {
+        InetSocketAddress unknown = InetSocketAddress.createUnresolved("no-such-host.invalid", 12367);
+        List<SeedProber.Probe> probes = new SeedProber(100).probe(
+                Collections.singletonList(unknown), Collections.<InetSocketAddress> emptySet());
+        assertFalse(probes.get(0).isAlive());
+        assertEquals("unknown host", probes.get(0).error);
+    }
+}